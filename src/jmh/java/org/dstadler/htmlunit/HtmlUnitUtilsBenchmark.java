@@ -0,0 +1,104 @@
+package org.dstadler.htmlunit;
+
+import org.htmlunit.StringWebResponse;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlDivision;
+import org.htmlunit.html.HtmlForm;
+import org.htmlunit.html.HtmlPage;
+import org.htmlunit.html.HtmlSubmitInput;
+import org.htmlunit.html.HtmlTextInput;
+import org.htmlunit.util.UrlUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the element lookup helpers of {@link HtmlUnitUtils} on synthetic pages of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlUnitUtilsBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int nodes;
+
+    private WebClient webClient;
+    private HtmlPage page;
+    private HtmlForm form;
+    private PageIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        webClient = HtmlUnitUtils.createWebClient(false);
+        page = (HtmlPage) webClient.loadWebResponseInto(
+                new StringWebResponse(createHtml(nodes), UrlUtils.toUrlUnsafe("http://localhost/")),
+                webClient.getCurrentWindow());
+        form = page.getFormByName("form");
+        index = new PageIndex(page);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        index.close();
+        webClient.close();
+    }
+
+    @Benchmark
+    public HtmlDivision getElementById() throws HtmlUnitException {
+        return HtmlUnitUtils.getElementById(page, "id" + (nodes / 2 - 1), HtmlDivision.class);
+    }
+
+    @Benchmark
+    public HtmlDivision getElementByIdIndexed() throws HtmlUnitException {
+        return HtmlUnitUtils.getElementById(index, "id" + (nodes / 2 - 1), HtmlDivision.class);
+    }
+
+    @Benchmark
+    public List<HtmlDivision> getElementsByAttribute() throws HtmlUnitException {
+        return HtmlUnitUtils.getElementsByAttribute(page, "div", "class", "c5", HtmlDivision.class);
+    }
+
+    @Benchmark
+    public List<HtmlDivision> getElementsByAttributeIndexed() throws HtmlUnitException {
+        return HtmlUnitUtils.getElementsByAttribute(index, "div", "class", "c5", HtmlDivision.class);
+    }
+
+    @Benchmark
+    public HtmlTextInput getFormElementByName() throws HtmlUnitException {
+        return HtmlUnitUtils.getFormElementByName(form, "last", HtmlTextInput.class);
+    }
+
+    @Benchmark
+    public HtmlSubmitInput getFormElementByType() throws HtmlUnitException {
+        return HtmlUnitUtils.getFormElementByType(form, HtmlSubmitInput.class);
+    }
+
+    // every entry adds a div and a span, so the page has about the given number of elements
+    static String createHtml(int nodes) {
+        StringBuilder html = new StringBuilder("<html><body><form name=\"form\" action=\"/submit\">");
+        for (int i = 0; i < nodes / 2; i++) {
+            html.append("<div class=\"c").append(i % 10).append("\" id=\"id").append(i).append("\">")
+                    .append("<span>text ").append(i).append("</span></div>");
+        }
+        html.append("<input type=\"text\" name=\"last\"/><input type=\"submit\" name=\"submit\"/>");
+        html.append("</form></body></html>");
+        return html.toString();
+    }
+}
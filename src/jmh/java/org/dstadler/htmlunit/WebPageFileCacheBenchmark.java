@@ -0,0 +1,102 @@
+package org.dstadler.htmlunit;
+
+import org.apache.commons.io.FileUtils;
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.testing.MockRESTServer;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures hits and misses of {@link WebPageFileCache} with pages served by a local server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebPageFileCacheBenchmark {
+    private MockRESTServer server;
+    private WebClient webClient;
+    private File dir;
+    private String url;
+
+    private WebPageFileCache fileCache;
+    private WebPageFileCache rawCache;
+    private WebPageFileCache memoryCache;
+    private WebPageFileCache segmentCache;
+    private WebPageFileCache missCache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", HtmlUnitUtilsBenchmark.createHtml(1000));
+        webClient = HtmlUnitUtils.createWebClient(false);
+        dir = Files.createTempDirectory("WebPageFileCacheBenchmark").toFile();
+        url = "http://localhost:" + server.getPort() + "/page";
+
+        fileCache = WebPageFileCache.builder().directory(new File(dir, "file")).build();
+        rawCache = WebPageFileCache.builder().directory(new File(dir, "raw")).rawResponses(true).build();
+        memoryCache = WebPageFileCache.builder().directory(new File(dir, "memory")).maxMemoryBytes(1024*1024).build();
+        segmentCache = WebPageFileCache.builder().directory(new File(dir, "segment")).segmentSize(64*1024*1024).build();
+
+        // every call is a miss as entries expire right away
+        missCache = WebPageFileCache.builder().directory(new File(dir, "miss")).timeout(0, TimeUnit.MILLISECONDS).build();
+
+        // populate the caches
+        for (WebPageFileCache cache : new WebPageFileCache[] { fileCache, rawCache, memoryCache, segmentCache }) {
+            cache.handle(webClient, url);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (WebPageFileCache cache : new WebPageFileCache[] { fileCache, rawCache, memoryCache, segmentCache, missCache }) {
+            cache.close();
+        }
+        webClient.close();
+        server.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public HtmlPage hitSavedFile() throws IOException {
+        return fileCache.handle(webClient, url);
+    }
+
+    @Benchmark
+    public HtmlPage hitRawFile() throws IOException {
+        return rawCache.handle(webClient, url);
+    }
+
+    @Benchmark
+    public HtmlPage hitMemory() throws IOException {
+        return memoryCache.handle(webClient, url);
+    }
+
+    @Benchmark
+    public HtmlPage hitSegment() throws IOException {
+        return segmentCache.handle(webClient, url);
+    }
+
+    @Benchmark
+    public HtmlPage miss() throws IOException {
+        return missCache.handle(webClient, url);
+    }
+}
@@ -0,0 +1,267 @@
+package org.dstadler.htmlunit;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.htmlunit.WebClient;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
+import org.htmlunit.WebResponseData;
+import org.htmlunit.util.NameValuePair;
+import org.htmlunit.util.WebConnectionWrapper;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link org.htmlunit.WebConnection} which does not fetch requests that are not
+ * needed for looking at the page, e.g. images, fonts, analytics or ads.
+ *
+ * Requests are blocked by host, by a pattern for the path or by the content type of
+ * the response. Requests matching one of the allow rules are never blocked. Blocked
+ * requests receive an empty response, so the page does not see an error.
+ *
+ * Hosts and paths are checked before the request is sent. The content type is only
+ * known after the response was received, blocking by content type still avoids
+ * that HtmlUnit parses or executes the content.
+ *
+ * <pre>
+ * WebClient webClient = HtmlUnitUtils.createWebClient();
+ * BlockingWebConnection.builder()
+ *      .skipResources()
+ *      .denyHost("ads.example.com")
+ *      .install(webClient);
+ * </pre>
+ */
+public class BlockingWebConnection extends WebConnectionWrapper {
+    private static final Log logger = LogFactory.getLog(BlockingWebConnection.class);
+
+    // hosts which only serve tracking and advertisement
+    private static final List<String> TRACKING_HOSTS = List.of(
+            "google-analytics.com", "googletagmanager.com", "googlesyndication.com", "doubleclick.net",
+            "googleadservices.com", "connect.facebook.net", "scorecardresearch.com", "hotjar.com");
+
+    private static final Pattern RESOURCE_PATHS = Pattern.compile(
+            "\\.(png|jpe?g|gif|webp|avif|ico|bmp|svg|woff2?|ttf|otf|eot|mp4|webm|mp3)$", Pattern.CASE_INSENSITIVE);
+
+    private static final List<String> RESOURCE_CONTENT_TYPES = List.of(
+            "image/", "font/", "audio/", "video/", "application/font", "application/x-font");
+
+    private final List<String> allowHosts;
+    private final List<String> denyHosts;
+    private final List<Pattern> allowPaths;
+    private final List<Pattern> denyPaths;
+    private final List<String> denyContentTypes;
+
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final ConcurrentHashMap<String, LongAdder> blockedByHost = new ConcurrentHashMap<>();
+
+    private BlockingWebConnection(WebClient webClient, Builder builder) {
+        super(webClient);
+
+        this.allowHosts = List.copyOf(builder.allowHosts);
+        this.denyHosts = List.copyOf(builder.denyHosts);
+        this.allowPaths = List.copyOf(builder.allowPaths);
+        this.denyPaths = List.copyOf(builder.denyPaths);
+        this.denyContentTypes = List.copyOf(builder.denyContentTypes);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public WebResponse getResponse(WebRequest request) throws IOException {
+        URL url = request.getUrl();
+        boolean allowed = isAllowed(url);
+        if (!allowed && isDenied(url)) {
+            return block(request, null);
+        }
+
+        WebResponse response = super.getResponse(request);
+        if (!allowed && isDeniedContentType(response.getContentType())) {
+            String contentType = response.getContentType();
+            response.cleanUp();
+            return block(request, contentType);
+        }
+
+        passed.incrementAndGet();
+        return response;
+    }
+
+    /**
+     * @return How many requests were fetched as usual
+     */
+    public long getPassedCount() {
+        return passed.get();
+    }
+
+    /**
+     * @return How many requests were answered with an empty response
+     */
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return How many requests were blocked for each host, sorted by host
+     */
+    public Map<String, Long> getBlockedCountByHost() {
+        Map<String, Long> counts = new TreeMap<>();
+        blockedByHost.forEach((host, count) -> counts.put(host, count.sum()));
+        return counts;
+    }
+
+    private boolean isAllowed(URL url) {
+        return matchesHost(allowHosts, url.getHost()) || matchesPath(allowPaths, url.getPath());
+    }
+
+    private boolean isDenied(URL url) {
+        return matchesHost(denyHosts, url.getHost()) || matchesPath(denyPaths, url.getPath());
+    }
+
+    private boolean isDeniedContentType(String contentType) {
+        if (contentType == null || contentType.isEmpty()) {
+            return false;
+        }
+
+        String type = contentType.toLowerCase(Locale.ROOT);
+        for (String prefix : denyContentTypes) {
+            if (type.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesHost(List<String> hosts, String host) {
+        String lowerHost = host.toLowerCase(Locale.ROOT);
+        for (String candidate : hosts) {
+            // also match all sub-domains
+            if (lowerHost.equals(candidate) || lowerHost.endsWith("." + candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesPath(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private WebResponse block(WebRequest request, String contentType) {
+        logger.debug("Blocking request " + request.getUrl());
+
+        blocked.incrementAndGet();
+        blockedByHost.computeIfAbsent(request.getUrl().getHost(), host -> new LongAdder()).increment();
+
+        List<NameValuePair> headers = new ArrayList<>();
+        headers.add(new NameValuePair("Content-Length", "0"));
+        if (contentType != null) {
+            headers.add(new NameValuePair("Content-Type", contentType));
+        }
+
+        return new WebResponse(new WebResponseData(new byte[0], 200, "OK", headers), request, 0);
+    }
+
+    public static final class Builder {
+        private final List<String> allowHosts = new ArrayList<>();
+        private final List<String> denyHosts = new ArrayList<>();
+        private final List<Pattern> allowPaths = new ArrayList<>();
+        private final List<Pattern> denyPaths = new ArrayList<>();
+        private final List<String> denyContentTypes = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Block images, fonts, audio and video as well as well-known
+         * tracking and advertisement hosts.
+         *
+         * @return This builder
+         */
+        public Builder skipResources() {
+            TRACKING_HOSTS.forEach(this::denyHost);
+            denyPath(RESOURCE_PATHS);
+            RESOURCE_CONTENT_TYPES.forEach(this::denyContentType);
+            return this;
+        }
+
+        /**
+         * @param host A host which is never blocked, including its sub-domains
+         * @return This builder
+         */
+        public Builder allowHost(String host) {
+            allowHosts.add(normalizeHost(host));
+            return this;
+        }
+
+        /**
+         * @param host A host which is blocked, including its sub-domains
+         * @return This builder
+         */
+        public Builder denyHost(String host) {
+            denyHosts.add(normalizeHost(host));
+            return this;
+        }
+
+        /**
+         * @param pattern Requests where this pattern is found in the path are never blocked
+         * @return This builder
+         */
+        public Builder allowPath(Pattern pattern) {
+            allowPaths.add(Preconditions.checkNotNull(pattern));
+            return this;
+        }
+
+        /**
+         * @param pattern Requests where this pattern is found in the path are blocked
+         * @return This builder
+         */
+        public Builder denyPath(Pattern pattern) {
+            denyPaths.add(Preconditions.checkNotNull(pattern));
+            return this;
+        }
+
+        /**
+         * @param contentType Responses with a content type starting with this are blocked, e.g. "image/"
+         * @return This builder
+         */
+        public Builder denyContentType(String contentType) {
+            Preconditions.checkArgument(contentType != null && !contentType.isEmpty(), "Need a content type, but had '%s'", contentType);
+            denyContentTypes.add(contentType.toLowerCase(Locale.ROOT));
+            return this;
+        }
+
+        /**
+         * Wraps the current connection of the client and installs
+         * itself as the connection of the client.
+         *
+         * @param webClient The client to filter requests for
+         * @return The installed connection, e.g. for reading the counts
+         */
+        public BlockingWebConnection install(WebClient webClient) {
+            return new BlockingWebConnection(webClient, this);
+        }
+
+        private static String normalizeHost(String host) {
+            Preconditions.checkArgument(host != null && !host.isEmpty(), "Need a host, but had '%s'", host);
+            return host.toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package org.dstadler.htmlunit;
+
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.DownloadedContent;
+import org.htmlunit.HttpWebConnection;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
+import org.htmlunit.WebResponseData;
+import org.htmlunit.util.NameValuePair;
+import org.htmlunit.util.UrlUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The raw data of a response as it is kept in the caches, i.e. the
+ * body as it was received together with status, headers and the URL
+ * it was loaded from, so that it can be replayed later.
+ */
+final class CachedResponse {
+    // increase when the format written by writeTo() changes
+    private static final int FORMAT_VERSION = 1;
+
+    private final String url;
+    private final int statusCode;
+    private final String statusMessage;
+    private final List<NameValuePair> headers;
+    private final byte[] body;
+    private final long storedAt;
+
+    CachedResponse(String url, int statusCode, String statusMessage, List<NameValuePair> headers, byte[] body, long storedAt) {
+        this.url = url;
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.headers = headers;
+        this.body = body;
+        this.storedAt = storedAt;
+    }
+
+    static CachedResponse of(WebResponse response) throws IOException {
+        final byte[] body;
+        try (InputStream stream = response.getContentAsStream()) {
+            body = IOUtils.toByteArray(stream);
+        }
+
+        return new CachedResponse(response.getWebRequest().getUrl().toExternalForm(),
+                response.getStatusCode(), response.getStatusMessage(),
+                withoutEncoding(response.getResponseHeaders()), body, System.currentTimeMillis());
+    }
+
+    /**
+     * @param response The response to check
+     * @return The status and headers of the response with an empty body, so that
+     *      it can be checked if the response should be stored before the body is read
+     */
+    static CachedResponse headersOf(WebResponse response) {
+        return new CachedResponse(response.getWebRequest().getUrl().toExternalForm(),
+                response.getStatusCode(), response.getStatusMessage(),
+                withoutEncoding(response.getResponseHeaders()), new byte[0], System.currentTimeMillis());
+    }
+
+    /**
+     * The body is stored decoded, so headers which describe the encoded body
+     * need to be dropped, otherwise the body would be decoded again on replay.
+     */
+    private static List<NameValuePair> withoutEncoding(List<NameValuePair> headers) {
+        List<NameValuePair> result = new ArrayList<>(headers.size());
+        for (NameValuePair header : headers) {
+            if (!header.getName().equalsIgnoreCase("Content-Encoding") &&
+                    !header.getName().equalsIgnoreCase("Content-Length")) {
+                result.add(header);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return A new response with the cached data, which can be
+     *      loaded into a window via {@link org.htmlunit.WebClient#loadWebResponseInto(WebResponse, org.htmlunit.WebWindow)}
+     * @throws IOException If the stored URL is invalid
+     */
+    WebResponse toWebResponse() throws IOException {
+        return toWebResponse(new WebRequest(UrlUtils.toUrlUnsafe(url)));
+    }
+
+    /**
+     * @param request The request which is answered with the cached data
+     * @return A new response with the cached data for the given request
+     */
+    WebResponse toWebResponse(WebRequest request) {
+        WebResponseData data = new WebResponseData(body, statusCode, statusMessage, headers);
+        return new WebResponse(data, request, 0);
+    }
+
+    /**
+     * Compute how long the response can be used without asking the server
+     * again, based on the caching-headers as described in RFC 9111.
+     *
+     * @return The freshness lifetime in milliseconds, 0 if the response needs to be
+     *      revalidated before it is used
+     */
+    long getFreshnessLifetime() {
+        String cacheControl = getHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.ROOT);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return TimeUnit.SECONDS.toMillis(Long.parseLong(directive.substring("max-age=".length()).trim()));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+
+        Long date = getDateHeader("Date");
+        if (getHeader("Expires") != null) {
+            // invalid values like "Expires: 0" mean "already expired"
+            Long expires = getDateHeader("Expires");
+            return expires == null ? 0 : Math.max(0, expires - (date == null ? storedAt : date));
+        }
+
+        // heuristic freshness of 10% of the time since the last modification
+        Long lastModified = getDateHeader("Last-Modified");
+        if (lastModified != null && date != null) {
+            return Math.max(0, (date - lastModified) / 10);
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return true if the response may be stored, i.e. it is not
+     *      marked with "Cache-Control: no-store"
+     */
+    boolean isStorable() {
+        String cacheControl = getHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                if (directive.trim().equalsIgnoreCase("no-store")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the response varies by request headers as listed in the
+     *      "Vary" header, "Accept-Encoding" is ignored as the body is stored decoded
+     */
+    boolean isVarying() {
+        for (NameValuePair header : headers) {
+            if (!header.getName().equalsIgnoreCase("Vary")) {
+                continue;
+            }
+
+            for (String field : header.getValue().split(",")) {
+                field = field.trim();
+                if (!field.isEmpty() && !field.equalsIgnoreCase("Accept-Encoding")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the response has an ETag or Last-Modified header
+     *      which can be used for a conditional request
+     */
+    boolean hasValidators() {
+        return getHeader("ETag") != null || getHeader("Last-Modified") != null;
+    }
+
+    private Long getDateHeader(String name) {
+        String value = getHeader(name);
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the response in a simple binary format which can be read
+     * again via {@link #readFrom(InputStream, long)}.
+     *
+     * @param stream Where to write the response to, it is not closed.
+     * @throws IOException If writing fails
+     */
+    void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, url);
+        out.writeInt(statusCode);
+        writeString(out, statusMessage);
+        out.writeInt(headers.size());
+        for (NameValuePair header : headers) {
+            writeString(out, header.getName());
+            writeString(out, header.getValue());
+        }
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * @param stream The data as written by {@link #writeTo(OutputStream)}, it is not closed.
+     * @param storedAt When the response was stored
+     * @return The response read from the stream
+     * @throws IOException If reading fails or the data is not in the expected format
+     */
+    static CachedResponse readFrom(InputStream stream, long storedAt) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        CachedResponse head = readHead(in, storedAt);
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+
+        return new CachedResponse(head.url, head.statusCode, head.statusMessage, head.headers, body, storedAt);
+    }
+
+    /**
+     * @param stream The data as written by {@link #writeTo(OutputStream)}, it is not closed.
+     * @param storedAt When the response was stored
+     * @return The response read from the stream, but with an empty body
+     * @throws IOException If reading fails or the data is not in the expected format
+     */
+    static CachedResponse readHeaders(InputStream stream, long storedAt) throws IOException {
+        return readHead(new DataInputStream(stream), storedAt);
+    }
+
+    /**
+     * Read the response from the file without keeping the body as byte-array, instead
+     * it is copied to memory or a temporary file in the same way as HtmlUnit does for
+     * downloaded content, so large bodies do not need to be kept in memory completely.
+     *
+     * The content does not depend on the file afterwards, so the response stays usable
+     * when the file is evicted, removed or replaced.
+     *
+     * @param file The file with the response
+     * @param compressed If the file is gzip-compressed
+     * @param maxInMemory Bodies larger than this are copied to a temporary file, 0 to always use a temporary file
+     * @param tempDirectory Where temporary files are created, null for the default location
+     * @return A response with the content read from the file
+     * @throws IOException If reading fails or the data is not in the expected format
+     */
+    static WebResponse streamFrom(File file, boolean compressed, int maxInMemory, File tempDirectory) throws IOException {
+        final CachedResponse head;
+        final DownloadedContent content;
+        try (DataInputStream in = new DataInputStream(open(file, compressed))) {
+            head = readHead(in, 0);
+
+            // the body is the last part of the file
+            in.readInt();
+            content = HttpWebConnection.downloadContent(in, maxInMemory, tempDirectory);
+        }
+
+        WebResponseData data = new WebResponseData(content, head.statusCode, head.statusMessage, head.headers);
+        return new WebResponse(data, new WebRequest(UrlUtils.toUrlUnsafe(head.url)), 0);
+    }
+
+    /**
+     * @param file The file to read
+     * @param compressed If the file is gzip-compressed
+     * @return A buffered stream which provides the uncompressed data of the file
+     * @throws IOException If the file cannot be opened
+     */
+    static InputStream open(File file, boolean compressed) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        if (!compressed) {
+            return stream;
+        }
+
+        try {
+            return new GZIPInputStream(stream);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    // reads everything up to the length of the body, the body itself is not read
+    private static CachedResponse readHead(DataInputStream in, long storedAt) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported format of cached response: " + version);
+        }
+
+        String url = readString(in);
+        int statusCode = in.readInt();
+        String statusMessage = readString(in);
+        int headerCount = in.readInt();
+        List<NameValuePair> headers = new ArrayList<>(headerCount);
+        for (int i = 0; i < headerCount; i++) {
+            headers.add(new NameValuePair(readString(in), readString(in)));
+        }
+
+        return new CachedResponse(url, statusCode, statusMessage, headers, new byte[0], storedAt);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        // writeUTF() is limited to 64k which may not be enough for URLs or headers
+        byte[] bytes = (str == null ? "" : str).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The same response, but with the given time of storing
+     */
+    CachedResponse withStoredAt(long time) {
+        return new CachedResponse(url, statusCode, statusMessage, headers, body, time);
+    }
+
+    /**
+     * Update the response with the headers of a "304 Not Modified" response as
+     * described in RFC 9111, i.e. the headers replace all stored headers with
+     * the same name, so e.g. a new Cache-Control, Expires or ETag is used.
+     *
+     * @param notModifiedHeaders The headers of the "304 Not Modified" response
+     * @param time When the response was revalidated
+     * @return The same response and body, but with updated headers and time of storing
+     */
+    CachedResponse withUpdatedHeaders(List<NameValuePair> notModifiedHeaders, long time) {
+        List<NameValuePair> updated = withoutEncoding(notModifiedHeaders);
+        List<NameValuePair> result = new ArrayList<>(headers.size() + updated.size());
+        for (NameValuePair header : headers) {
+            if (updated.stream().noneMatch(update -> update.getName().equalsIgnoreCase(header.getName()))) {
+                result.add(header);
+            }
+        }
+        result.addAll(updated);
+
+        return new CachedResponse(url, statusCode, statusMessage, result, body, time);
+    }
+
+    /**
+     * @return The same response, but for the given URL
+     */
+    CachedResponse withUrl(String newUrl) {
+        return new CachedResponse(newUrl, statusCode, statusMessage, headers, body, storedAt);
+    }
+
+    /**
+     * @param name The name of the header, case-insensitive
+     * @return The value of the first header with the given name, null if there is none
+     */
+    String getHeader(String name) {
+        for (NameValuePair header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    String getStatusMessage() {
+        return statusMessage;
+    }
+
+    List<NameValuePair> getHeaders() {
+        return headers;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    long getStoredAt() {
+        return storedAt;
+    }
+}
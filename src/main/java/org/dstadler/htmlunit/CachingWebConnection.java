@@ -0,0 +1,204 @@
+package org.dstadler.htmlunit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.htmlunit.HttpMethod;
+import org.htmlunit.WebClient;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
+import org.htmlunit.util.WebConnectionWrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link org.htmlunit.WebConnection} which stores responses in a directory,
+ * so that all requests of a page are cached, not only the page itself, but also
+ * scripts, stylesheets, XHR and frames.
+ *
+ * Only successful GET requests are cached. The caching headers of the responses
+ * are honoured: responses are used without asking the server as long as they are
+ * fresh according to Cache-Control/Expires, afterwards they are revalidated via
+ * ETag/Last-Modified if possible and updated with the headers of the "304 Not Modified"
+ * response. Responses marked with "no-store" are not cached, neither are responses
+ * which vary by request headers as announced via "Vary".
+ *
+ * Files are named with the same hashing scheme as used by {@link WebPageFileCache}.
+ *
+ * <pre>
+ * WebClient webClient = HtmlUnitUtils.createWebClient();
+ * new CachingWebConnection(webClient, new File("cache"));
+ * </pre>
+ */
+public class CachingWebConnection extends WebConnectionWrapper {
+    private static final Log logger = LogFactory.getLog(CachingWebConnection.class);
+
+    private static final String EXTENSION = ".response";
+
+    private final File directory;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /**
+     * Wraps the current connection of the client and installs
+     * itself as the connection of the client.
+     *
+     * @param webClient The client to cache requests for
+     * @param directory Where to store the responses
+     */
+    public CachingWebConnection(WebClient webClient, File directory) {
+        super(webClient);
+
+        this.directory = directory;
+    }
+
+    @Override
+    public WebResponse getResponse(WebRequest request) throws IOException {
+        if (request.getHttpMethod() != HttpMethod.GET || isConditional(request)) {
+            return super.getResponse(request);
+        }
+
+        String url = request.getUrl().toExternalForm();
+        File file = new File(directory, WebPageFileCache.stripUrl(url) + EXTENSION);
+
+        CachedResponse cached = read(file);
+        if (cached != null) {
+            if (System.currentTimeMillis() - cached.getStoredAt() < cached.getFreshnessLifetime()) {
+                logger.debug("Using cached response for " + url);
+                hits.incrementAndGet();
+                return cached.toWebResponse(request);
+            }
+
+            if (cached.hasValidators()) {
+                WebResponse response = revalidate(request, cached);
+                if (response.getStatusCode() == 304) {
+                    logger.debug("Cached response for " + url + " is still valid");
+                    revalidations.incrementAndGet();
+
+                    // the server may send new caching headers, e.g. a new max-age
+                    CachedResponse updated = cached.withUpdatedHeaders(response.getResponseHeaders(), System.currentTimeMillis());
+                    response.cleanUp();
+
+                    if (updated.isStorable() && !updated.isVarying()) {
+                        write(file, updated);
+                    } else {
+                        FileUtils.deleteQuietly(file);
+                    }
+                    return updated.toWebResponse(request);
+                }
+
+                misses.incrementAndGet();
+                return store(file, response);
+            }
+        }
+
+        misses.incrementAndGet();
+        return store(file, super.getResponse(request));
+    }
+
+    /**
+     * @return How often a response was used without asking the server
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return How often a response was not cached or changed on the server
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return How often the server confirmed that a cached response is still valid
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    private WebResponse revalidate(WebRequest request, CachedResponse cached) throws IOException {
+        String etag = cached.getHeader("ETag");
+        if (etag != null) {
+            request.setAdditionalHeader("If-None-Match", etag);
+        }
+        String lastModified = cached.getHeader("Last-Modified");
+        if (lastModified != null) {
+            request.setAdditionalHeader("If-Modified-Since", lastModified);
+        }
+
+        try {
+            return super.getResponse(request);
+        } finally {
+            request.removeAdditionalHeader("If-None-Match");
+            request.removeAdditionalHeader("If-Modified-Since");
+        }
+    }
+
+    private WebResponse store(File file, WebResponse response) throws IOException {
+        if (response.getStatusCode() != 200) {
+            return response;
+        }
+
+        // check the headers first to only read bodies which are actually stored
+        CachedResponse head = CachedResponse.headersOf(response);
+        if (!head.isStorable() || head.isVarying() || (head.getFreshnessLifetime() == 0 && !head.hasValidators())) {
+            return response;
+        }
+
+        write(file, CachedResponse.of(response));
+
+        return response;
+    }
+
+    private void write(File file, CachedResponse cached) throws IOException {
+        FileUtils.forceMkdir(directory);
+
+        // write to a temporary file first, so that other threads never see partially written files
+        File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                cached.writeTo(stream);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    private static CachedResponse read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            return CachedResponse.readFrom(stream, file.lastModified());
+        } catch (IOException e) {
+            logger.warn("Could not read cached response from " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private static boolean isConditional(WebRequest request) {
+        // the caller does its own revalidation, do not interfere
+        for (Map.Entry<String, String> header : request.getAdditionalHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase("If-None-Match") || header.getKey().equalsIgnoreCase("If-Modified-Since")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
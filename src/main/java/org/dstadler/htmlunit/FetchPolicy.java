@@ -0,0 +1,309 @@
+package org.dstadler.htmlunit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.htmlunit.FailingHttpStatusCodeException;
+import org.htmlunit.Page;
+import org.htmlunit.WebClient;
+import org.htmlunit.WebResponse;
+import org.htmlunit.html.HtmlPage;
+import org.htmlunit.util.UrlUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads pages like {@link HtmlUnitUtils#getInitialPage(WebClient, String)}, but
+ * retries on rate-limiting, server errors and timeouts and limits how many pages
+ * are loaded from one host at the same time.
+ *
+ * Retries wait with exponential backoff and jitter, a Retry-After header sent by
+ * the server is honoured. If it asks to wait longer than the maximum backoff, the
+ * page is not retried, but fails right away. The limit per host is shared by
+ * all threads using the same policy and is only held while a request is running,
+ * not while waiting for the next retry.
+ *
+ * <pre>
+ * FetchPolicy policy = FetchPolicy.builder()
+ *      .maxRetries(3)
+ *      .maxConcurrentPerHost(4)
+ *      .build();
+ * HtmlPage page = policy.load(webClient, url);
+ * </pre>
+ */
+public class FetchPolicy {
+    private static final Log logger = LogFactory.getLog(FetchPolicy.class);
+
+    private static final Set<Integer> DEFAULT_RETRY_STATUS = Set.of(429, 500, 502, 503, 504);
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxConcurrentPerHost;
+    private final Set<Integer> retryStatus;
+
+    // weak values, so hosts which are currently not fetched from do not stay in memory,
+    // callers keep the semaphore referenced as long as they use it
+    private final LoadingCache<String, Semaphore> hosts;
+    private final AtomicLong retries = new AtomicLong();
+
+    private FetchPolicy(Builder builder) {
+        this.maxRetries = builder.maxRetries;
+        this.initialBackoffMillis = builder.initialBackoffMillis;
+        this.maxBackoffMillis = builder.maxBackoffMillis;
+        this.maxConcurrentPerHost = builder.maxConcurrentPerHost;
+        this.retryStatus = Set.copyOf(builder.retryStatus);
+        this.hosts = CacheBuilder.newBuilder()
+                .weakValues()
+                .build(CacheLoader.from(host -> new Semaphore(maxConcurrentPerHost, true)));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Load the page, retrying if the server is busy or does not respond in time.
+     *
+     * @param webClient The client to load the page with
+     * @param url The URL of the page
+     * @return The loaded page
+     * @throws IOException If loading the page still fails after all retries, also
+     *          an {@link InterruptedIOException} if the thread is interrupted while waiting
+     */
+    public HtmlPage load(WebClient webClient, String url) throws IOException {
+        Semaphore permits = permits(url);
+
+        for (int attempt = 0; ; attempt++) {
+            final Attempt result;
+            acquire(permits, url);
+            try {
+                result = attempt(webClient, url, attempt);
+            } finally {
+                release(permits);
+            }
+
+            if (result.page() != null) {
+                return result.page();
+            }
+            sleep(result.retryDelayMillis(), url);
+        }
+    }
+
+    /**
+     * The outcome of one attempt of loading a page.
+     *
+     * @param page The loaded page, null if the page should be requested again
+     * @param retryDelayMillis How long to wait before the next attempt
+     */
+    record Attempt(HtmlPage page, long retryDelayMillis) {
+    }
+
+    /**
+     * Load the page once, without waiting for the limit per host or the backoff,
+     * so that callers can release other resources while waiting.
+     *
+     * @param webClient The client to load the page with
+     * @param url The URL of the page
+     * @param attempt The number of the attempt, starting at 0
+     * @return The page or how long to wait before the next attempt
+     * @throws IOException If loading the page failed and is not retried
+     */
+    Attempt attempt(WebClient webClient, String url, int attempt) throws IOException {
+        final String retryAfter;
+        final String reason;
+        Exception cause = null;
+        try {
+            Page page = webClient.getPage(url);
+
+            // failing status codes are only returned if the client does not throw exceptions for them
+            WebResponse response = page.getWebResponse();
+            if (!retryStatus.contains(response.getStatusCode()) || attempt >= maxRetries) {
+                if (!(page instanceof HtmlPage)) {
+                    throw new IOException("Expected a HTML page for " + url + ", but had " + page);
+                }
+                return new Attempt((HtmlPage) page, 0);
+            }
+            retryAfter = response.getResponseHeaderValue("Retry-After");
+            reason = "status " + response.getStatusCode();
+        } catch (FailingHttpStatusCodeException e) {
+            if (!retryStatus.contains(e.getStatusCode()) || attempt >= maxRetries) {
+                throw new IOException(e);
+            }
+            retryAfter = e.getResponse().getResponseHeaderValue("Retry-After");
+            reason = "status " + e.getStatusCode();
+            cause = e;
+        } catch (SocketTimeoutException | ConnectTimeoutException e) {
+            if (attempt >= maxRetries) {
+                throw e;
+            }
+            retryAfter = null;
+            reason = e.toString();
+        }
+
+        long delay = backoffMillis(attempt, retryAfter);
+        if (delay < 0) {
+            throw new IOException("Not retrying " + url + " after " + reason + ", the server asked to wait until '" + retryAfter +
+                    "', which is longer than the maximum backoff of " + maxBackoffMillis + "ms", cause);
+        }
+        logger.info("Retrying " + url + " in " + delay + "ms after " + reason + ", retry " + (attempt + 1) + " of " + maxRetries);
+        retries.incrementAndGet();
+
+        return new Attempt(null, delay);
+    }
+
+    /**
+     * @return How often a page was requested again
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @param attempt The number of the failed attempt, starting at 0
+     * @param retryAfter The Retry-After header of the response, null if not set
+     * @return How long to wait before the next attempt, -1 if the server asked
+     *      to wait longer than the maximum backoff
+     */
+    long backoffMillis(int attempt, String retryAfter) {
+        long requested = parseRetryAfter(retryAfter);
+        if (requested > maxBackoffMillis) {
+            return -1;
+        }
+
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt, 30));
+
+        // "equal jitter": wait at least half of the backoff, so retries of many threads spread out
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+        return Math.max(delay, requested);
+    }
+
+    private static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return 0;
+        }
+
+        // either a number of seconds or a HTTP-date
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException e2) {
+                logger.debug("Ignoring invalid Retry-After header '" + retryAfter + "'");
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @param url The URL of a page
+     * @return The permits for the host of the page, null if there is no limit per host
+     */
+    Semaphore permits(String url) {
+        return maxConcurrentPerHost == 0 ? null :
+                hosts.getUnchecked(UrlUtils.toUrlUnsafe(url).getHost());
+    }
+
+    static void acquire(Semaphore permits, String url) throws InterruptedIOException {
+        if (permits == null) {
+            return;
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to fetch " + url);
+        }
+    }
+
+    static void release(Semaphore permits) {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    static void sleep(long delay, String url) throws InterruptedIOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry " + url);
+        }
+    }
+
+    public static final class Builder {
+        private int maxRetries = 3;
+        private long initialBackoffMillis = 500;
+        private long maxBackoffMillis = 30_000;
+        private int maxConcurrentPerHost = 0;
+        private Set<Integer> retryStatus = DEFAULT_RETRY_STATUS;
+
+        private Builder() {
+        }
+
+        /**
+         * @param maxRetries How often a page is requested again after the first attempt failed
+         * @return This builder
+         */
+        public Builder maxRetries(int maxRetries) {
+            Preconditions.checkArgument(maxRetries >= 0, "Cannot use a negative number of retries, but had %s", maxRetries);
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * @param initial The backoff after the first failed attempt, it is doubled for each further attempt
+         * @param max The maximum time to wait before retrying, pages with a Retry-After header
+         *            which asks for more are not retried
+         * @return This builder
+         */
+        public Builder backoff(Duration initial, Duration max) {
+            Preconditions.checkArgument(initial.toMillis() > 0, "Need a positive initial backoff, but had %s", initial);
+            Preconditions.checkArgument(max.compareTo(initial) >= 0, "Maximum backoff %s is less than initial backoff %s", max, initial);
+            this.initialBackoffMillis = initial.toMillis();
+            this.maxBackoffMillis = max.toMillis();
+            return this;
+        }
+
+        /**
+         * @param maxConcurrentPerHost How many pages of one host can be loaded at the same time, 0 for no limit
+         * @return This builder
+         */
+        public Builder maxConcurrentPerHost(int maxConcurrentPerHost) {
+            Preconditions.checkArgument(maxConcurrentPerHost >= 0, "Cannot use a negative limit, but had %s", maxConcurrentPerHost);
+            this.maxConcurrentPerHost = maxConcurrentPerHost;
+            return this;
+        }
+
+        /**
+         * @param retryStatus The HTTP status codes which are retried, by default 429, 500, 502, 503 and 504
+         * @return This builder
+         */
+        public Builder retryStatus(Set<Integer> retryStatus) {
+            this.retryStatus = Preconditions.checkNotNull(retryStatus);
+            return this;
+        }
+
+        public FetchPolicy build() {
+            return new FetchPolicy(this);
+        }
+    }
+}
@@ -1,13 +1,36 @@
 package org.dstadler.htmlunit;
 
 import java.io.Serial;
+import java.util.function.Supplier;
 
 
 public class HtmlUnitException extends Exception {
     @Serial
     private static final long serialVersionUID = 672381225744556274L;
 
+    // not serialized, it usually references the page
+    private transient Supplier<String> dump;
+
     public HtmlUnitException(String arg0) {
         super(arg0);
     }
+
+    public HtmlUnitException(String arg0, Throwable cause) {
+        super(arg0, cause);
+    }
+
+    /**
+     * The contents are serialized when this method is called, i.e. they show the
+     * page as it is now, not necessarily as it was when the lookup failed.
+     *
+     * @return The contents of the page or form where the lookup failed, null if none
+     *      were attached, see {@link HtmlUnitUtils#setDumpMode(org.htmlunit.WebClient, HtmlUnitUtils.DumpMode, int)}
+     */
+    public String getDump() {
+        return dump == null ? null : dump.get();
+    }
+
+    void setDump(Supplier<String> dump) {
+        this.dump = dump;
+    }
 }
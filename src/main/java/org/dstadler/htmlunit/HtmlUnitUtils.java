@@ -1,7 +1,9 @@
 package org.dstadler.htmlunit;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Iterators;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.xml.XmlEscapers;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.htmlunit.BrowserVersion;
@@ -10,23 +12,97 @@ import org.htmlunit.FailingHttpStatusCodeException;
 import org.htmlunit.SgmlPage;
 import org.htmlunit.SilentCssErrorHandler;
 import org.htmlunit.WebClient;
+import org.htmlunit.WebWindow;
+import org.htmlunit.css.CssStyleSheet;
+import org.htmlunit.cssparser.parser.CSSErrorHandler;
+import org.htmlunit.cssparser.parser.CSSException;
+import org.htmlunit.cssparser.parser.CSSOMParser;
+import org.htmlunit.cssparser.parser.CSSParseException;
+import org.htmlunit.cssparser.parser.javacc.CSS3Parser;
+import org.htmlunit.cssparser.parser.selector.SelectorList;
+import org.htmlunit.html.DomAttr;
 import org.htmlunit.html.DomElement;
-import org.htmlunit.html.DomNodeList;
+import org.htmlunit.html.DomNode;
 import org.htmlunit.html.HtmlElement;
 import org.htmlunit.html.HtmlForm;
 import org.htmlunit.html.HtmlPage;
+import org.htmlunit.html.HtmlScript;
+import org.htmlunit.html.HtmlStyle;
+import org.htmlunit.javascript.background.JavaScriptJobManager;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 public class HtmlUnitUtils {
     private static final Log logger = LogFactory.getLog(HtmlUnitUtils.class);
 
+    // wait for all jobs, including periodic ones
+    private static final Duration NEVER_IGNORE = Duration.ofMillis(Long.MAX_VALUE);
+
+    // the maximum interval for checking if background JavaScript is finished
+    private static final long MAX_JOB_POLL_MILLIS = 50;
+
+    // parsed CSS selectors, they do not depend on the page so can be shared by all queries
+    private static final int MAX_CACHED_SELECTORS = 1000;
+    private static final Cache<String, SelectorList> SELECTORS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_SELECTORS)
+            .build();
+
+    // how the contents of the page are reported when a lookup fails, per client,
+    // weak keys so that the settings do not keep closed clients alive
+    private static final DumpSettings DEFAULT_DUMP = new DumpSettings(DumpMode.LOG, 100_000);
+    private static final Map<WebClient, DumpSettings> DUMP_SETTINGS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * How the contents of the page or form are reported when a lookup fails.
+     */
+    public enum DumpMode {
+        /** Log the contents at level WARN, only done if WARN is enabled */
+        LOG,
+        /**
+         * Attach the contents to the exception, they are only produced when calling {@link HtmlUnitException#getDump()}.
+         *
+         * The exception references the page until then, so keeping the exception keeps the page
+         * in memory, and the dump shows the page at the time of calling getDump(), which may
+         * differ from the page at the time of the failed lookup if scripts changed it in the meantime.
+         */
+        ATTACH,
+        /** Do not report the contents at all */
+        NONE
+    }
+
     private HtmlUnitUtils() {
     }
 
+    /**
+     * Configure how the contents of the page or form are reported when a lookup
+     * on a page of the given client fails, e.g. use {@link DumpMode#ATTACH} when
+     * failing lookups are expected and caught, so the DOM is only serialized if
+     * the dump is actually used.
+     *
+     * Clients which are not configured use {@link DumpMode#LOG} with up to 100,000 characters.
+     *
+     * @param webClient The client whose pages are reported this way
+     * @param mode How to report the contents
+     * @param maxChars Serializing the contents stops after this number of characters,
+     *          so large pages are not serialized completely
+     */
+    public static void setDumpMode(WebClient webClient, DumpMode mode, int maxChars) {
+        Preconditions.checkArgument(maxChars > 0, "Need a positive number of characters, but had %s", maxChars);
+
+        DUMP_SETTINGS.put(webClient, new DumpSettings(Preconditions.checkNotNull(mode), maxChars));
+    }
+
+    private record DumpSettings(DumpMode mode, int maxChars) {
+    }
+
     public static WebClient createWebClient() {
         return createWebClient(true);
     }
@@ -36,15 +112,25 @@ public class HtmlUnitUtils {
     }
 
     public static WebClient createWebClient(boolean enableJavaScript, BrowserVersion browserVersion) {
+        return createWebClient(WebClientConfig.builder()
+                .javaScript(enableJavaScript)
+                .browserVersion(browserVersion)
+                .build());
+    }
+
+    /**
+     * Create a client with the given settings, the presets above use the default
+     * settings of {@link WebClientConfig}.
+     *
+     * @param config Timeouts, JavaScript, CSS, connection-pool and which resources to skip
+     * @return A new client, the caller needs to close it
+     */
+    public static WebClient createWebClient(WebClientConfig config) {
         logger.debug("Creating client");
 
         // proxy for some machines
-        final WebClient webClient = new WebClient(browserVersion);
-        webClient.waitForBackgroundJavaScriptStartingBefore(1000);
-        webClient.getOptions().setTimeout(60000);
-        webClient.getOptions().setJavaScriptEnabled(enableJavaScript);
-        webClient.getOptions().setCssEnabled(false);
-        webClient.getOptions().setRedirectEnabled(true); // follow old-school HTTP 302 redirects - standard behaviour
+        final WebClient webClient = new WebClient(config.getBrowserVersion());
+        config.apply(webClient);
 
         webClient.setHTMLParserListener(null);
         webClient.setIncorrectnessListener((message, origin) -> {
@@ -71,56 +157,86 @@ public class HtmlUnitUtils {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public static <T extends HtmlElement> T getElementById(final HtmlPage page, String id, Class<T> type) throws HtmlUnitException {
-        DomElement element = page.getElementById(id);
+        return checkElementById(page, page.getElementById(id), id, type);
+    }
+
+    /**
+     * Same as {@link #getElementById(HtmlPage, String, Class)}, but uses the given
+     * index instead of searching the page.
+     */
+    public static <T extends HtmlElement> T getElementById(final PageIndex index, String id, Class<T> type) throws HtmlUnitException {
+        List<DomElement> elements = index.getElementsById(id);
+        return checkElementById(index.getPage(), elements.isEmpty() ? null : elements.getFirst(), id, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends HtmlElement> T checkElementById(final HtmlPage page, DomElement element, String id, Class<T> type) throws HtmlUnitException {
         if(element == null) {
-            logger.warn("Page contents (" + page.getUrl() + "): " + page.asXml());
-            throw new NoElementFoundException("Could not find element with id '" + id + "' on page " + page.getUrl());
+            throw withDump(new NoElementFoundException("Could not find element with id '" + id + "' on page " + page.getUrl()), page);
         }
         if(!type.isAssignableFrom(element.getClass())) {
-            logger.warn("Page contents (" + page.getUrl() + "): " + page.asXml());
-            throw new WrongElementException("Expected a field with id '" + id + "' and type " + type.getName() +
-                    ", but had an element of type " + element.getClass() + " on page: " + page.getUrl());
+            throw withDump(new WrongElementException("Expected a field with id '" + id + "' and type " + type.getName() +
+                    ", but had an element of type " + element.getClass() + " on page: " + page.getUrl()), page);
         }
 
         return (T) element;
     }
 
-    @SuppressWarnings("unchecked")
     public static <T extends HtmlElement> T getElementByName(final HtmlPage page, String name, Class<T> type) throws HtmlUnitException {
         final HtmlElement element;
         try {
             element = page.getElementByName(name);
         } catch (ElementNotFoundException e) {
-            throw new NoElementFoundException("Could not find element with name '" + name + "' on page " + page.getUrl() + ": " + e);
+            throw withDump(new NoElementFoundException("Could not find element with name '" + name + "' on page " + page.getUrl() + ": " + e), page);
         }
-        /*will throw exception anyway:
-        if(element == null) {
-            logger.warn("Page contents (" + page.getUrl() + "): " + page.asXml());
-            throw new ElementNotFoundException("Could not find element with name '" + name + "' on page " + page.getUrl());
-        }*/
+        return checkElementByName(page, element, name, type);
+    }
+
+    /**
+     * Same as {@link #getElementByName(HtmlPage, String, Class)}, but uses the given
+     * index instead of searching the page.
+     */
+    public static <T extends HtmlElement> T getElementByName(final PageIndex index, String name, Class<T> type) throws HtmlUnitException {
+        List<DomElement> elements = index.getElementsByName(name);
+        if(elements.isEmpty()) {
+            throw new NoElementFoundException("Could not find element with name '" + name + "' on page " + index.getPage().getUrl());
+        }
+        return checkElementByName(index.getPage(), elements.getFirst(), name, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends HtmlElement> T checkElementByName(final HtmlPage page, DomElement element, String name, Class<T> type) throws HtmlUnitException {
         if(!type.isAssignableFrom(element.getClass())) {
-            logger.warn("Page contents (" + page.getUrl() + "): " + page.asXml());
-            throw new WrongElementException("Expected a field with name '" + name + "' and type " + type.getName() +
-                    ", but had an element of type " + element.getClass() + " on page: " + page.getUrl());
+            throw withDump(new WrongElementException("Expected a field with name '" + name + "' and type " + type.getName() +
+                    ", but had an element of type " + element.getClass() + " on page: " + page.getUrl()), page);
         }
 
         return (T) element;
     }
 
-    @SuppressWarnings("unchecked")
     public static <T extends HtmlElement> List<T> getElementsByAttribute(final HtmlPage page, String tagName, String attribute, String value, Class<T> type) throws HtmlUnitException {
+        return filterByAttribute(page, page.getElementsByTagName(tagName), tagName, attribute, value, type);
+    }
+
+    /**
+     * Same as {@link #getElementsByAttribute(HtmlPage, String, String, String, Class)}, but
+     * uses the given index instead of searching the page.
+     */
+    public static <T extends HtmlElement> List<T> getElementsByAttribute(final PageIndex index, String tagName, String attribute, String value, Class<T> type) throws HtmlUnitException {
+        return filterByAttribute(index.getPage(), index.getElementsByAttribute(tagName, attribute, value), tagName, attribute, value, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends HtmlElement> List<T> filterByAttribute(final HtmlPage page, Iterable<DomElement> elements, String tagName, String attribute, String value, Class<T> type) throws HtmlUnitException {
         List<T> list = new ArrayList<>();
-        DomNodeList<DomElement> elementsByTagName = page.getElementsByTagName(tagName);
-        for(DomElement element : elementsByTagName) {
+        for(DomElement element : elements) {
             String attValue = element.getAttribute(attribute);
             if(attValue.equals(value)) {
                 if(!type.isAssignableFrom(element.getClass())) {
-                    logger.warn("Page contents (" + page.getUrl() + "): " + page.asXml());
-                    throw new WrongElementException("Expected a field with tag '" + tagName + "', attribute '" + attribute +
+                    throw withDump(new WrongElementException("Expected a field with tag '" + tagName + "', attribute '" + attribute +
                             "', value '" + value + "' and type " + type.getName() +
-                            ", but had an element of type " + element.getClass() + " on page: " + page.getUrl());
+                            ", but had an element of type " + element.getClass() + " on page: " + page.getUrl()), page);
                 }
 
                 list.add((T) element);
@@ -130,18 +246,28 @@ public class HtmlUnitUtils {
         return list;
     }
 
-    @SuppressWarnings("unchecked")
     public static <T extends HtmlElement> List<T> getElementsByAttributeContains(final HtmlPage page, String tagName, String attribute, String value, Class<T> type) throws WrongElementException {
+        return filterByAttributeContains(page, page.getElementsByTagName(tagName), tagName, attribute, value, type);
+    }
+
+    /**
+     * Same as {@link #getElementsByAttributeContains(HtmlPage, String, String, String, Class)}, but
+     * uses the given index instead of searching the page.
+     */
+    public static <T extends HtmlElement> List<T> getElementsByAttributeContains(final PageIndex index, String tagName, String attribute, String value, Class<T> type) throws WrongElementException {
+        return filterByAttributeContains(index.getPage(), index.getElementsByTagName(tagName), tagName, attribute, value, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends HtmlElement> List<T> filterByAttributeContains(final HtmlPage page, Iterable<DomElement> elements, String tagName, String attribute, String value, Class<T> type) throws WrongElementException {
         List<T> list = new ArrayList<>();
-        DomNodeList<DomElement> elementsByTagName = page.getElementsByTagName(tagName);
-        for(DomElement element : elementsByTagName) {
+        for(DomElement element : elements) {
             String attValue = element.getAttribute(attribute);
             if(attValue.contains(value)) {
                 if(!type.isAssignableFrom(element.getClass())) {
-                    logger.warn("Page contents (" + page.getUrl() + "): " + page.asXml());
-                    throw new WrongElementException("Expected a field with tag '" + tagName + "', attribute '" + attribute +
+                    throw withDump(new WrongElementException("Expected a field with tag '" + tagName + "', attribute '" + attribute +
                             "', which contains value '" + value + "' and type " + type.getName() +
-                            ", but had an element of type " + element.getClass() + " on page: " + page.getUrl());
+                            ", but had an element of type " + element.getClass() + " on page: " + page.getUrl()), page);
                 }
 
                 list.add((T) element);
@@ -151,17 +277,27 @@ public class HtmlUnitUtils {
         return list;
     }
 
-    @SuppressWarnings("unchecked")
     public static <T extends HtmlElement> List<T> getElementsByTextContents(final HtmlPage page, String tagName, String text, Class<T> type) throws WrongElementException {
+        return filterByTextContents(page, page.getElementsByTagName(tagName), tagName, text, type);
+    }
+
+    /**
+     * Same as {@link #getElementsByTextContents(HtmlPage, String, String, Class)}, but
+     * uses the given index instead of searching the page.
+     */
+    public static <T extends HtmlElement> List<T> getElementsByTextContents(final PageIndex index, String tagName, String text, Class<T> type) throws WrongElementException {
+        return filterByTextContents(index.getPage(), index.getElementsByTagName(tagName), tagName, text, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends HtmlElement> List<T> filterByTextContents(final HtmlPage page, Iterable<DomElement> elements, String tagName, String text, Class<T> type) throws WrongElementException {
         List<T> list = new ArrayList<>();
-        DomNodeList<DomElement> elementsByTagName = page.getElementsByTagName(tagName);
-        for(DomElement element : elementsByTagName) {
+        for(DomElement element : elements) {
             if(element.getTextContent().equals(text)) {
                 if(!type.isAssignableFrom(element.getClass())) {
-                    logger.warn("Page contents (" + page.getUrl() + "): " + page.asXml());
-                    throw new WrongElementException("Expected a field with tag '" + tagName + "', " +
+                    throw withDump(new WrongElementException("Expected a field with tag '" + tagName + "', " +
                             "which contains text '" + text + "' and type " + type.getName() +
-                            ", but had an element of type " + element.getClass() + " on page: " + page.getUrl());
+                            ", but had an element of type " + element.getClass() + " on page: " + page.getUrl()), page);
                 }
 
                 list.add((T) element);
@@ -180,25 +316,15 @@ public class HtmlUnitUtils {
             throw new NoElementFoundException("Could not find form with name '" + formName + "' on page " + page.getUrl() + ": " + e);
         }
 
-        // use a stack to recursively walk into all sub-elements, not just the first level
-        Stack<DomElement> elements = new Stack<>();
-        Iterators.addAll(elements, form.getChildElements().iterator());
-        T search = null;
-        while(!elements.isEmpty()) {
-            DomElement it = elements.pop();
-            if(type.isAssignableFrom(it.getClass())) {
-                if(search != null) {
-                    logger.warn("Form contents (" + page.getUrl() + '/' + formName + "): " + form.asXml());
-                    throw new HtmlUnitException("Did find more than one element of type " + type.getName() + " in form '" + formName + "' on page " + page.getUrl());
-                }
-
-                search = (T) it;
-            }
-            Iterators.addAll(elements, it.getChildElements().iterator());
+        // walk into all sub-elements, not just the first level, a second match is enough to fail
+        List<DomElement> found = findDescendants(form, it -> type.isAssignableFrom(it.getClass()), 2);
+        if(found.size() > 1) {
+            throw withDump(new HtmlUnitException("Did find more than one element of type " + type.getName() + " in form '" + formName + "' on page " + page.getUrl()), form);
         }
+
+        T search = found.isEmpty() ? null : (T) found.getFirst();
         if(search == null) {
-            logger.warn("Form contents (" + page.getUrl() + '/' + formName + "): " + form.asXml());
-            throw new NoElementFoundException("Could not find element of type " + type.getName() + " in form '" + formName + "' on page " + page.getUrl());
+            throw withDump(new NoElementFoundException("Could not find element of type " + type.getName() + " in form '" + formName + "' on page " + page.getUrl()), form);
         }
         return search;
     }
@@ -206,33 +332,22 @@ public class HtmlUnitUtils {
 
     @SuppressWarnings("unchecked")
     public static <T extends HtmlElement> T getFormElementByName(final HtmlForm form, String name, Class<T> type) throws HtmlUnitException {
-        // use a stack to recursively walk into all sub-elements, not just the first level
-        Stack<DomElement> elements = new Stack<>();
-        Iterators.addAll(elements, form.getChildElements().iterator());
-        HtmlElement element = null;
-        while(!elements.isEmpty()) {
-            DomElement it = elements.pop();
-            if(it.getAttribute("name").equals(name)) {
-                // don't allow to find it twice
-                if(element != null) {
-                    logger.warn("Form contents: " + form.asXml());
-                    throw new HtmlUnitException("Did find more than one element with name " + name + " and type " + type.getName() + " in form.");
-                }
-
-                element = (HtmlElement)it;
-            }
-            Iterators.addAll(elements, it.getChildElements().iterator());
+        // walk into all sub-elements, not just the first level, a second match is enough to fail
+        List<DomElement> found = findDescendants(form, it -> it.getAttribute("name").equals(name), 2);
+        // don't allow to find it twice
+        if(found.size() > 1) {
+            throw withDump(new HtmlUnitException("Did find more than one element with name " + name + " and type " + type.getName() + " in form."), form);
         }
 
+        HtmlElement element = found.isEmpty() ? null : (HtmlElement) found.getFirst();
+
         if(element == null) {
-            logger.warn("Form contents: " + form.asXml());
-            throw new NoElementFoundException("Could not find element with name " + name + " of type " + type.getName() + " in form '" + form.getNameAttribute());
+            throw withDump(new NoElementFoundException("Could not find element with name " + name + " of type " + type.getName() + " in form '" + form.getNameAttribute()), form);
         }
 
         if(!type.isAssignableFrom(element.getClass())) {
-            logger.warn("Form contents: " + form.asXml());
-            throw new WrongElementException("Expected a field with name '" + name + "' and type " + type.getName() +
-                    ", but had an element of type " + element.getClass());
+            throw withDump(new WrongElementException("Expected a field with name '" + name + "' and type " + type.getName() +
+                    ", but had an element of type " + element.getClass()), form);
         }
 
         return (T) element;
@@ -240,33 +355,23 @@ public class HtmlUnitUtils {
 
     @SuppressWarnings("unchecked")
     public static <T extends HtmlElement> T getFormElementByNameAndValue(final HtmlForm form, String name, String value, Class<T> type) throws HtmlUnitException {
-        // use a stack to recursively walk into all sub-elements, not just the first level
-        Stack<DomElement> elements = new Stack<>();
-        Iterators.addAll(elements, form.getChildElements().iterator());
-        HtmlElement element = null;
-        while(!elements.isEmpty()) {
-            DomElement it = elements.pop();
-            if(it.getAttribute("name").equals(name) && it.getAttribute("value").equals(value)) {
-                // don't allow to find it twice
-                if(element != null) {
-                    logger.warn("Form contents: " + form.asXml());
-                    throw new HtmlUnitException("Did find more than one element with name " + name + ", value " + value + " and type " + type.getName() + " in form.");
-                }
-
-                element = (HtmlElement)it;
-            }
-            Iterators.addAll(elements, it.getChildElements().iterator());
+        // walk into all sub-elements, not just the first level, a second match is enough to fail
+        List<DomElement> found = findDescendants(form,
+                it -> it.getAttribute("name").equals(name) && it.getAttribute("value").equals(value), 2);
+        // don't allow to find it twice
+        if(found.size() > 1) {
+            throw withDump(new HtmlUnitException("Did find more than one element with name " + name + ", value " + value + " and type " + type.getName() + " in form."), form);
         }
 
+        HtmlElement element = found.isEmpty() ? null : (HtmlElement) found.getFirst();
+
         if(element == null) {
-            logger.warn("Form contents: " + form.asXml());
-            throw new NoElementFoundException("Could not find element with name " + name + ", value " + value + " of type " + type.getName() + " in form '" + form.getNameAttribute());
+            throw withDump(new NoElementFoundException("Could not find element with name " + name + ", value " + value + " of type " + type.getName() + " in form '" + form.getNameAttribute()), form);
         }
 
         if(!type.isAssignableFrom(element.getClass())) {
-            logger.warn("Form contents: " + form.asXml());
-            throw new WrongElementException("Expected a field with name '" + name + "', value '" + value + "' and type " + type.getName() +
-                    ", but had an element of type " + element.getClass());
+            throw withDump(new WrongElementException("Expected a field with name '" + name + "', value '" + value + "' and type " + type.getName() +
+                    ", but had an element of type " + element.getClass()), form);
         }
 
         return (T) element;
@@ -274,32 +379,55 @@ public class HtmlUnitUtils {
 
     @SuppressWarnings("unchecked")
     public static <T extends HtmlElement> T getFormElementByType(final HtmlForm form, Class<T> type) throws HtmlUnitException {
-        // use a stack to recursively walk into all sub-elements, not just the first level
-        Stack<DomElement> elements = new Stack<>();
-        Iterators.addAll(elements, form.getChildElements().iterator());
-        HtmlElement element = null;
-        while(!elements.isEmpty()) {
-            DomElement it = elements.pop();
-            if(type.isAssignableFrom(it.getClass())) {
-                // don't allow to find it twice
-                if(element != null) {
-                    logger.warn("Form contents: " + form.asXml());
-                    throw new HtmlUnitException("Did find more than one element of type " + type.getName() + " in form.");
-                }
-
-                element = (HtmlElement)it;
-            }
-            Iterators.addAll(elements, it.getChildElements().iterator());
+        // walk into all sub-elements, not just the first level, a second match is enough to fail
+        List<DomElement> found = findDescendants(form, it -> type.isAssignableFrom(it.getClass()), 2);
+        // don't allow to find it twice
+        if(found.size() > 1) {
+            throw withDump(new HtmlUnitException("Did find more than one element of type " + type.getName() + " in form."), form);
         }
 
+        HtmlElement element = found.isEmpty() ? null : (HtmlElement) found.getFirst();
+
         if(element == null) {
-            logger.warn("Form contents: " + form.asXml());
-            throw new NoElementFoundException("Could not find element of type " + type.getName() + " in form '" + form.getNameAttribute());
+            throw withDump(new NoElementFoundException("Could not find element of type " + type.getName() + " in form '" + form.getNameAttribute()), form);
         }
 
         return (T) element;
     }
 
+    /**
+     * Walk all elements below the given node in document order via the sibling-pointers
+     * of the DOM, so no children are copied, and stop as soon as enough matches are found.
+     * The contents of script- and style-elements are skipped as they cannot contain fields.
+     */
+    private static List<DomElement> findDescendants(DomNode root, Predicate<DomElement> filter, int limit) {
+        List<DomElement> matches = new ArrayList<>(limit);
+        DomNode node = root.getFirstChild();
+        while (node != null) {
+            boolean descend = false;
+            if (node instanceof DomElement element) {
+                if (filter.test(element)) {
+                    matches.add(element);
+                    if (matches.size() >= limit) {
+                        break;
+                    }
+                }
+                descend = !(element instanceof HtmlScript || element instanceof HtmlStyle);
+            }
+
+            DomNode next = descend ? node.getFirstChild() : null;
+            if (next == null) {
+                // go up until there is a next sibling or the root is reached again
+                while (node != root && node.getNextSibling() == null) {
+                    node = node.getParentNode();
+                }
+                next = node == root ? null : node.getNextSibling();
+            }
+            node = next;
+        }
+        return matches;
+    }
+
     /**
      * Returns the first form on the page with the given action-attribute.
      *
@@ -320,6 +448,209 @@ public class HtmlUnitUtils {
         throw new NoElementFoundException("Could not find form with action '" + action + '\'');
     }
 
+    /**
+     * Returns all elements below the given node which match the CSS selector.
+     *
+     * Parsed selectors are kept in a bounded cache, so repeatedly running the same
+     * query on many pages only parses it once.
+     *
+     * @param node The page or element to search in
+     * @param selector One or more CSS selectors, separated by comma
+     * @param type The type that all matching elements should have
+     * @return The matching elements in document order, empty if none match
+     *
+     * @throws WrongElementException If a matching element is not of the given type
+     * @throws HtmlUnitException If the selector is invalid
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends HtmlElement> List<T> querySelectorAll(final DomNode node, String selector, Class<T> type) throws HtmlUnitException {
+        SelectorList selectors = parseSelector(selector);
+        BrowserVersion browserVersion = node.getPage().getWebClient().getBrowserVersion();
+
+        List<T> list = new ArrayList<>();
+        for(DomElement element : node.getDomElementDescendants()) {
+            if(matches(browserVersion, selectors, element, selector)) {
+                if(!type.isAssignableFrom(element.getClass())) {
+                    throw withDump(new WrongElementException("Expected elements matching selector '" + selector + "' and type " + type.getName() +
+                            ", but had an element of type " + element.getClass() + " on page: " + node.getPage().getUrl()), node.getPage());
+                }
+
+                list.add((T) element);
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns the first element below the given node which matches the CSS selector.
+     *
+     * @param node The page or element to search in
+     * @param selector One or more CSS selectors, separated by comma
+     * @param type The type that the element should have
+     * @return The found element, not null always
+     *
+     * @throws NoElementFoundException If no element matches
+     * @throws WrongElementException If the element is not of the given type
+     * @throws HtmlUnitException If the selector is invalid
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends HtmlElement> T querySelector(final DomNode node, String selector, Class<T> type) throws HtmlUnitException {
+        SelectorList selectors = parseSelector(selector);
+        BrowserVersion browserVersion = node.getPage().getWebClient().getBrowserVersion();
+
+        for(DomElement element : node.getDomElementDescendants()) {
+            if(matches(browserVersion, selectors, element, selector)) {
+                if(!type.isAssignableFrom(element.getClass())) {
+                    throw withDump(new WrongElementException("Expected an element matching selector '" + selector + "' and type " + type.getName() +
+                            ", but had an element of type " + element.getClass() + " on page: " + node.getPage().getUrl()), node.getPage());
+                }
+
+                return (T) element;
+            }
+        }
+
+        throw withDump(new NoElementFoundException("Could not find element matching selector '" + selector + "' on page " + node.getPage().getUrl()), node.getPage());
+    }
+
+    /**
+     * Returns all results of the XPath expression, evaluated relative to the given node.
+     *
+     * @param node The page or element to evaluate the expression on
+     * @param xpath The XPath expression, it should select elements
+     * @param type The type that all results should have
+     * @return The results in document order, empty if there are none
+     *
+     * @throws WrongElementException If a result is not an element of the given type,
+     *          e.g. for expressions which select attributes or text
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends HtmlElement> List<T> getByXPath(final DomNode node, String xpath, Class<T> type) throws WrongElementException {
+        List<T> list = new ArrayList<>();
+        for(Object result : node.getByXPath(xpath)) {
+            if(!type.isInstance(result)) {
+                throw withDump(new WrongElementException("Expected results of XPath '" + xpath + "' with type " + type.getName() +
+                        ", but had a result of type " + (result == null ? null : result.getClass()) + " on page: " + node.getPage().getUrl()), node.getPage());
+            }
+
+            list.add((T) result);
+        }
+
+        return list;
+    }
+
+    private static SelectorList parseSelector(String selector) throws HtmlUnitException {
+        SelectorList selectors = SELECTORS.getIfPresent(selector);
+        if(selectors != null) {
+            return selectors;
+        }
+
+        try {
+            CSSOMParser parser = new CSSOMParser(new CSS3Parser());
+            parser.setErrorHandler(new FailingCssErrorHandler());
+            selectors = parser.parseSelectors(selector);
+        } catch (IOException | CSSException e) {
+            throw new HtmlUnitException("Invalid selector '" + selector + "': " + e.getMessage(), e);
+        }
+        if(selectors == null || selectors.size() == 0) {
+            throw new HtmlUnitException("Invalid selector '" + selector + "'");
+        }
+
+        // parsing the same selector twice concurrently does no harm, so no need to lock
+        SELECTORS.put(selector, selectors);
+        return selectors;
+    }
+
+    private static boolean matches(BrowserVersion browserVersion, SelectorList selectors, DomElement element, String selector) throws HtmlUnitException {
+        try {
+            for(int i = 0; i < selectors.size(); i++) {
+                if(CssStyleSheet.selects(browserVersion, selectors.get(i), element, null, true, true)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (CSSException e) {
+            // e.g. pseudo-classes which are not supported
+            throw new HtmlUnitException("Invalid selector '" + selector + "': " + e.getMessage(), e);
+        }
+    }
+
+    private static final class FailingCssErrorHandler implements CSSErrorHandler {
+        @Override
+        public void warning(CSSParseException exception) {
+            // not a reason to reject the selector
+        }
+
+        @Override
+        public void error(CSSParseException exception) {
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(CSSParseException exception) {
+            throw exception;
+        }
+    }
+
+    private static <E extends HtmlUnitException> E withDump(E exception, DomNode node) {
+        String label = (node instanceof HtmlForm ? "Form" : "Page") + " contents (" + node.getPage().getUrl() + "): ";
+        DumpSettings settings = DUMP_SETTINGS.getOrDefault(node.getPage().getWebClient(), DEFAULT_DUMP);
+        int maxChars = settings.maxChars();
+        switch (settings.mode()) {
+            case LOG -> {
+                if (logger.isWarnEnabled()) {
+                    logger.warn(label + dump(node, maxChars));
+                }
+            }
+            case ATTACH -> exception.setDump(() -> label + dump(node, maxChars));
+            case NONE -> {
+                // not reported
+            }
+        }
+        return exception;
+    }
+
+    private static String dump(DomNode node, int maxChars) {
+        StringBuilder xml = new StringBuilder();
+        if (appendXml(node, xml, maxChars)) {
+            return xml.toString();
+        }
+
+        xml.setLength(maxChars);
+        return xml.append("... (more characters not shown)").toString();
+    }
+
+    // serialize node by node and stop when maxChars are reached, asXml() would always build the full page
+    private static boolean appendXml(DomNode node, StringBuilder xml, int maxChars) {
+        if (xml.length() > maxChars) {
+            return false;
+        }
+
+        if (node.getFirstChild() == null) {
+            xml.append(node.asXml().trim());
+            return xml.length() <= maxChars;
+        }
+
+        if (node instanceof DomElement element) {
+            xml.append('<').append(element.getTagName());
+            for (DomAttr attribute : element.getAttributesMap().values()) {
+                xml.append(' ').append(attribute.getName()).append("=\"")
+                        .append(XmlEscapers.xmlAttributeEscaper().escape(attribute.getValue())).append('"');
+            }
+            xml.append('>');
+        }
+        for (DomNode child : node.getChildren()) {
+            if (!appendXml(child, xml, maxChars)) {
+                return false;
+            }
+        }
+        if (node instanceof DomElement element) {
+            xml.append("</").append(element.getTagName()).append('>');
+        }
+
+        return xml.length() <= maxChars;
+    }
+
     /**
      * Wait for up to the given time for the given text to appear
      *
@@ -330,37 +661,95 @@ public class HtmlUnitUtils {
      * @throws IllegalStateException If the text does not appear withing the given time.
      */
     public static void waitForText(SgmlPage page, String str, int waitMS) {
-        for(int i = 0;i < waitMS/100;i++) {
-            if(page.asXml().contains(str)) {
-                // found
-                break;
-            }
+        waitForText(page, str, Duration.ofMillis(waitMS));
+    }
 
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                throw new IllegalStateException(e);
+    /**
+     * Wait for up to the given time for the given text to appear.
+     *
+     * The page is serialized once at the start, afterwards nodes which
+     * are added or changed are checked for the text when the page reports
+     * a change. As the text may also appear across multiple changed nodes,
+     * the full page is checked again after changes, but at most every 100
+     * milliseconds.
+     *
+     * @param page The page to look at
+     * @param str The text that is looked for
+     * @param timeout How long to wait until waiting is ended
+     * @return How long it took until the text was found
+     *
+     * @throws IllegalStateException If the text does not appear withing the given time.
+     */
+    public static Duration waitForText(SgmlPage page, String str, Duration timeout) {
+        long start = System.nanoTime();
+
+        // register before checking the page to not miss changes in between
+        try (TextChangeWaiter waiter = new TextChangeWaiter(page, str)) {
+            if(!page.asXml().contains(str) && !waiter.await(timeout.toMillis())) {
+                Preconditions.checkState(page.asXml().contains(str), "Still not found: %s", str);
             }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
         }
 
-        Preconditions.checkState(page.asXml().contains(str), "Still not found: %s", str);
+        return Duration.ofNanos(System.nanoTime() - start);
     }
 
     /**
-     * Call {@link WebClient#waitForBackgroundJavaScript(long)} with
-     * 1-second delay until it returns 0 or the given number of seconds
-     * has passed.
+     * Wait until the background JavaScript jobs of the client are done
+     * or the given number of seconds has passed.
      *
-     * @param client The WebClient to call.
+     * @param client The WebClient to wait for.
      * @param seconds The number of seconds that the call will take at max
      */
     public static void waitForJavascript(WebClient client, int seconds) {
-        for(int i = 0;i < seconds;i++) {
-            int jobs = client.waitForBackgroundJavaScript(1000);
-            if(jobs == 0) {
-                break;
+        waitForJavascript(client, Duration.ofSeconds(seconds), NEVER_IGNORE);
+    }
+
+    /**
+     * Wait until the background JavaScript jobs of all windows of the client are done.
+     *
+     * In contrast to {@link WebClient#waitForBackgroundJavaScript(long)} this returns
+     * as soon as no more relevant jobs are pending by checking the job-managers
+     * in short, increasing intervals.
+     *
+     * Periodic jobs, i.e. timers started via setInterval(), which run at intervals of
+     * at least the given period are ignored, as pages often use them for polling and
+     * thus never finish all jobs.
+     *
+     * @param client The WebClient to wait for.
+     * @param timeout How long to wait at max
+     * @param ignorePeriod Periodic jobs with at least this interval are not waited for
+     * @return The number of jobs which were still pending, 0 if all relevant jobs finished
+     */
+    public static int waitForJavascript(WebClient client, Duration timeout, Duration ignorePeriod) {
+        final long ignoreMillis = ignorePeriod.toMillis();
+        final JavaScriptJobManager.JavaScriptJobFilter filter = job -> !job.isPeriodic() || job.getPeriod() < ignoreMillis;
+
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        long sleepMillis = 1;
+        while(true) {
+            int jobs = 0;
+            for(WebWindow window : client.getWebWindows()) {
+                JavaScriptJobManager jobManager = window.getJobManager();
+                if(jobManager != null) {
+                    jobs += jobManager.getJobCount(filter);
+                }
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if(jobs == 0 || remaining <= 0) {
+                return jobs;
+            }
+
+            try {
+                Thread.sleep(Math.min(sleepMillis, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return jobs;
             }
-        }
 
+            sleepMillis = Math.min(sleepMillis * 2, MAX_JOB_POLL_MILLIS);
+        }
     }
 }
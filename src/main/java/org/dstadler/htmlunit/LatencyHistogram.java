@@ -0,0 +1,89 @@
+package org.dstadler.htmlunit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations which can be updated concurrently without locking.
+ *
+ * Values are counted in buckets of powers of two microseconds, so percentiles
+ * are only approximations, but no single values need to be kept.
+ */
+public final class LatencyHistogram {
+    // bucket i counts durations below 2^i microseconds, the last one also all larger ones
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos The duration to add
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        totalNanos.add(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return The current values, values which are recorded concurrently
+     *      may be missing in some of them
+     */
+    public Snapshot snapshot() {
+        long[] values = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            values[i] = buckets.get(i);
+        }
+        return new Snapshot(count.sum(), totalNanos.sum(), maxNanos.get(), values);
+    }
+
+    private static int bucket(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * The values of a {@link LatencyHistogram} at one point in time.
+     *
+     * @param count How many durations were recorded
+     * @param totalNanos The sum of all durations
+     * @param maxNanos The longest duration
+     * @param buckets The counts per bucket, bucket i counts durations below 2^i microseconds
+     */
+    public record Snapshot(long count, long totalNanos, long maxNanos, long[] buckets) {
+        /**
+         * @return The average duration in milliseconds, 0 if nothing was recorded
+         */
+        public double getMeanMillis() {
+            return count == 0 ? 0 : (double) totalNanos / count / 1_000_000;
+        }
+
+        /**
+         * @param percentile The percentile between 0 and 100, e.g. 99 for the 99th percentile
+         * @return An upper bound of the duration in milliseconds below which the given
+         *      percentage of the recorded durations lies, 0 if nothing was recorded
+         */
+        public double getPercentileMillis(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long target = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    // the upper bound of the bucket, but never more than the actual maximum
+                    return Math.min((double) (1L << i) / 1_000, (double) maxNanos / 1_000_000);
+                }
+            }
+            return (double) maxNanos / 1_000_000;
+        }
+    }
+}
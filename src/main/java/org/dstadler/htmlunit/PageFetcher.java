@@ -0,0 +1,283 @@
+package org.dstadler.htmlunit;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.htmlunit.BrowserVersion;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlPage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Fetch a batch of pages concurrently.
+ *
+ * As a {@link WebClient} is not thread-safe, each URL is fetched on its own
+ * virtual thread with its own client, at most the given number of fetches
+ * run at the same time.
+ *
+ * Results are returned in the order in which the fetches complete, failures
+ * for single URLs are reported as {@link HtmlUnitException} in the result
+ * and do not abort the batch.
+ */
+public class PageFetcher {
+    private static final Log logger = LogFactory.getLog(PageFetcher.class);
+
+    private PageFetcher() {
+    }
+
+    /**
+     * Called on the fetching thread while the client of the page is still open,
+     * so that the page can be inspected and the necessary data extracted.
+     *
+     * @param <T> The type of the data which is extracted from the page
+     */
+    @FunctionalInterface
+    public interface PageHandler<T> {
+        T handle(HtmlPage page) throws IOException, HtmlUnitException;
+    }
+
+    /**
+     * The outcome of fetching and handling one URL.
+     *
+     * @param url The URL which was fetched
+     * @param value The value returned by the {@link PageHandler}, null if fetching failed
+     * @param exception The failure, null if fetching was successful
+     * @param <T> The type of the data which is extracted from the page
+     */
+    public record FetchResult<T>(String url, T value, HtmlUnitException exception) {
+        public boolean isSuccess() {
+            return exception == null;
+        }
+
+        /**
+         * @return The value returned by the {@link PageHandler}
+         * @throws HtmlUnitException If fetching or handling the page failed
+         */
+        public T getOrThrow() throws HtmlUnitException {
+            if (exception != null) {
+                throw exception;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Fetch the given URLs concurrently, each with a new client from the given factory.
+     *
+     * The factory is called on the fetching thread and the client is closed
+     * after the page was handled, so it is never shared between threads.
+     *
+     * @param urls The URLs to fetch
+     * @param concurrency How many fetches can run at the same time
+     * @param clientFactory Creates the clients, e.g. {@code () -> HtmlUnitUtils.createWebClient(false)}
+     * @param handler Extracts the data from each page
+     * @param <T> The type of the data which is extracted from the page
+     * @return A stream of results in the order in which the fetches completed.
+     *          Consuming the stream blocks until the next result is available.
+     */
+    public static <T> Stream<FetchResult<T>> fetchAll(Collection<String> urls, int concurrency,
+                                                      Supplier<WebClient> clientFactory, PageHandler<T> handler) {
+        return fetchWith(urls, concurrency, () -> {
+            WebClient client = clientFactory.get();
+            return new ClientHandle(client, client::close);
+        }, loadWith(handler));
+    }
+
+    /**
+     * Fetch the given URLs concurrently, using clients leased from the given pool.
+     *
+     * @param urls The URLs to fetch
+     * @param concurrency How many fetches can run at the same time
+     * @param pool The pool to borrow clients from
+     * @param enableJavaScript If the clients should execute JavaScript
+     * @param browserVersion Which browser the clients should emulate
+     * @param handler Extracts the data from each page
+     * @param <T> The type of the data which is extracted from the page
+     * @return A stream of results in the order in which the fetches completed.
+     *          Consuming the stream blocks until the next result is available.
+     */
+    public static <T> Stream<FetchResult<T>> fetchAll(Collection<String> urls, int concurrency,
+                                                      WebClientPool pool, boolean enableJavaScript, BrowserVersion browserVersion,
+                                                      PageHandler<T> handler) {
+        return runAll(urls, concurrency, pool, enableJavaScript, browserVersion, loadWith(handler));
+    }
+
+    /**
+     * Like {@link #fetchAll(Collection, int, WebClientPool, boolean, BrowserVersion, PageHandler)},
+     * but pages are loaded via the given policy, i.e. with retries and a limit per host.
+     *
+     * The permit of the host is taken before a slot of the batch and a client, and all
+     * of them are released while waiting for the next retry, so busy hosts do not keep
+     * other URLs from being fetched. The limit per host also covers handling the page.
+     */
+    public static <T> Stream<FetchResult<T>> fetchAll(Collection<String> urls, int concurrency,
+                                                      WebClientPool pool, boolean enableJavaScript, BrowserVersion browserVersion,
+                                                      FetchPolicy policy, PageHandler<T> handler) {
+        Preconditions.checkArgument(concurrency > 0, "Need a concurrency of at least 1, but had %s", concurrency);
+
+        Semaphore limit = new Semaphore(concurrency);
+        ClientSource clientSource = borrowFrom(pool, enableJavaScript, browserVersion);
+        return fetchWith(urls, url -> fetchWithRetries(url, limit, clientSource, policy, handler));
+    }
+
+    /**
+     * Like {@link #fetchAll(Collection, int, WebClientPool, boolean, BrowserVersion, PageHandler)},
+     * but the task decides how the page is loaded, e.g. via a {@link WebPageFileCache}.
+     */
+    static <T> Stream<FetchResult<T>> runAll(Collection<String> urls, int concurrency,
+                                             WebClientPool pool, boolean enableJavaScript, BrowserVersion browserVersion,
+                                             ClientTask<T> task) {
+        return fetchWith(urls, concurrency, borrowFrom(pool, enableJavaScript, browserVersion), task);
+    }
+
+    private static ClientSource borrowFrom(WebClientPool pool, boolean enableJavaScript, BrowserVersion browserVersion) {
+        return () -> {
+            WebClientPool.Lease lease = pool.borrow(enableJavaScript, browserVersion);
+            return new ClientHandle(lease.getClient(), lease::close);
+        };
+    }
+
+    private static <T> ClientTask<T> loadWith(PageHandler<T> handler) {
+        return (client, url) -> handler.handle(HtmlUnitUtils.getInitialPage(client, url));
+    }
+
+    private static <T> Stream<FetchResult<T>> fetchWith(Collection<String> urls, int concurrency,
+                                                        ClientSource clientSource, ClientTask<T> task) {
+        Preconditions.checkArgument(concurrency > 0, "Need a concurrency of at least 1, but had %s", concurrency);
+
+        Semaphore limit = new Semaphore(concurrency);
+        return fetchWith(urls, url -> fetch(url, limit, clientSource, task));
+    }
+
+    private static <T> Stream<FetchResult<T>> fetchWith(Collection<String> urls, Function<String, FetchResult<T>> fetcher) {
+        List<String> toFetch = new ArrayList<>(urls);
+        BlockingQueue<FetchResult<T>> results = new LinkedBlockingQueue<>();
+
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            for (String url : toFetch) {
+                executor.execute(() -> {
+                    try {
+                        results.add(fetcher.apply(url));
+                    } catch (Throwable e) {
+                        // e.g. an Error in the handler, every URL needs a result,
+                        // otherwise consuming the stream would block forever
+                        results.add(new FetchResult<>(url, null, new HtmlUnitException("Could not fetch page " + url + ": " + e, e)));
+                        throw e;
+                    }
+                });
+            }
+        } finally {
+            // running fetches still complete, this only stops accepting new ones
+            executor.shutdown();
+        }
+
+        return IntStream.range(0, toFetch.size()).mapToObj(i -> {
+            try {
+                return results.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static <T> FetchResult<T> fetch(String url, Semaphore limit, ClientSource clientSource, ClientTask<T> task) {
+        try {
+            limit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new FetchResult<>(url, null, new HtmlUnitException("Interrupted while waiting to fetch " + url, e));
+        }
+
+        try {
+            ClientHandle handle = clientSource.acquire();
+            try {
+                return new FetchResult<>(url, task.run(handle.client(), url), null);
+            } finally {
+                handle.release().run();
+            }
+        } catch (HtmlUnitException e) {
+            return new FetchResult<>(url, null, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new FetchResult<>(url, null, new HtmlUnitException("Interrupted while fetching " + url, e));
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not fetch page " + url, e);
+            return new FetchResult<>(url, null, new HtmlUnitException("Could not fetch page " + url + ": " + e, e));
+        } finally {
+            limit.release();
+        }
+    }
+
+    private static <T> FetchResult<T> fetchWithRetries(String url, Semaphore limit, ClientSource clientSource,
+                                                       FetchPolicy policy, PageHandler<T> handler) {
+        Semaphore hostPermits = policy.permits(url);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                // wait for the host first, so a busy host does not block a slot and a client
+                FetchPolicy.acquire(hostPermits, url);
+            } catch (InterruptedIOException e) {
+                return new FetchResult<>(url, null, new HtmlUnitException("Interrupted while waiting to fetch " + url, e));
+            }
+
+            int current = attempt;
+            AtomicReference<FetchPolicy.Attempt> retry = new AtomicReference<>();
+            final FetchResult<T> result;
+            try {
+                result = fetch(url, limit, clientSource, (client, u) -> {
+                    FetchPolicy.Attempt outcome = policy.attempt(client, u, current);
+                    if (outcome.page() == null) {
+                        retry.set(outcome);
+                        return null;
+                    }
+                    return handler.handle(outcome.page());
+                });
+            } finally {
+                FetchPolicy.release(hostPermits);
+            }
+
+            if (retry.get() == null) {
+                return result;
+            }
+
+            // nothing is held while waiting, the virtual thread only sleeps
+            try {
+                FetchPolicy.sleep(retry.get().retryDelayMillis(), url);
+            } catch (InterruptedIOException e) {
+                return new FetchResult<>(url, null, new HtmlUnitException("Interrupted while waiting to retry " + url, e));
+            }
+        }
+    }
+
+    /**
+     * Does the work for one URL with the client which was acquired for it.
+     */
+    @FunctionalInterface
+    interface ClientTask<T> {
+        T run(WebClient client, String url) throws IOException, HtmlUnitException;
+    }
+
+    @FunctionalInterface
+    private interface ClientSource {
+        ClientHandle acquire() throws InterruptedException;
+    }
+
+    private record ClientHandle(WebClient client, Runnable release) {
+    }
+}
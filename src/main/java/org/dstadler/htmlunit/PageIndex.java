@@ -0,0 +1,185 @@
+package org.dstadler.htmlunit;
+
+import org.htmlunit.html.DomAttr;
+import org.htmlunit.html.DomChangeEvent;
+import org.htmlunit.html.DomChangeListener;
+import org.htmlunit.html.DomElement;
+import org.htmlunit.html.HtmlAttributeChangeEvent;
+import org.htmlunit.html.HtmlAttributeChangeListener;
+import org.htmlunit.html.HtmlPage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An index of the elements of an {@link HtmlPage}, built with a single walk
+ * over the DOM, so that pages which are queried many times do not need to
+ * be scanned again for every lookup.
+ *
+ * Elements are indexed by tag-name, by attribute-name and -value and thus
+ * also by id and name. The index is invalidated whenever elements or attributes
+ * are changed, e.g. by JavaScript, and rebuilt on the next lookup. Text is not
+ * indexed, so lookups by text contents always see the current text.
+ *
+ * Use it with the methods in {@link HtmlUnitUtils} which accept a PageIndex
+ * and call {@link #close()} when the page is not queried any more to unregister
+ * from change-notifications.
+ */
+public class PageIndex implements AutoCloseable {
+    private final HtmlPage page;
+    private final Listener listener = new Listener();
+
+    private volatile boolean valid;
+
+    private Map<String, List<DomElement>> byTag;
+    private Map<String, Map<String, List<DomElement>>> byAttribute;
+
+    public PageIndex(HtmlPage page) {
+        this.page = page;
+
+        page.addDomChangeListener(listener);
+        page.addHtmlAttributeChangeListener(listener);
+    }
+
+    public HtmlPage getPage() {
+        return page;
+    }
+
+    /**
+     * @param tagName The name of the tag, case-insensitive, "*" returns all elements
+     * @return All elements with the given tag-name in document order, the list cannot be modified
+     */
+    public List<DomElement> getElementsByTagName(String tagName) {
+        Map<String, List<DomElement>> tags = ensureIndex().byTag;
+
+        // the lists are part of the index, callers must not change them
+        if ("*".equals(tagName)) {
+            return Collections.unmodifiableList(tags.getOrDefault("*", Collections.emptyList()));
+        }
+        return Collections.unmodifiableList(tags.getOrDefault(tagName.toLowerCase(Locale.ROOT), Collections.emptyList()));
+    }
+
+    /**
+     * @param attribute The name of the attribute
+     * @param value The expected value of the attribute
+     * @return All elements which have the given attribute with exactly the given value, in document order,
+     *      the list cannot be modified
+     */
+    public List<DomElement> getElementsByAttribute(String attribute, String value) {
+        Map<String, List<DomElement>> values = ensureIndex().byAttribute.get(attribute.toLowerCase(Locale.ROOT));
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(values.getOrDefault(value, Collections.emptyList()));
+    }
+
+    /**
+     * @param tagName The name of the tag, case-insensitive
+     * @param attribute The name of the attribute
+     * @param value The expected value of the attribute
+     * @return All elements with the given tag-name which have the given attribute with exactly the given value
+     */
+    public List<DomElement> getElementsByAttribute(String tagName, String attribute, String value) {
+        // elements without the attribute are not indexed, but
+        // match an empty value as getAttribute() returns "" for them
+        if (value.isEmpty()) {
+            List<DomElement> list = new ArrayList<>();
+            for (DomElement element : getElementsByTagName(tagName)) {
+                if (element.getAttribute(attribute).isEmpty()) {
+                    list.add(element);
+                }
+            }
+            return list;
+        }
+
+        List<DomElement> list = new ArrayList<>();
+        for (DomElement element : getElementsByAttribute(attribute, value)) {
+            if ("*".equals(tagName) || element.getLocalName().equalsIgnoreCase(tagName)) {
+                list.add(element);
+            }
+        }
+        return list;
+    }
+
+    public List<DomElement> getElementsById(String id) {
+        return getElementsByAttribute("id", id);
+    }
+
+    public List<DomElement> getElementsByName(String name) {
+        return getElementsByAttribute("name", name);
+    }
+
+    /**
+     * @return false if the page was changed since the index was built last,
+     *      the index is then rebuilt on the next lookup.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Stop listening for changes of the page.
+     */
+    @Override
+    public void close() {
+        page.removeDomChangeListener(listener);
+        page.removeHtmlAttributeChangeListener(listener);
+    }
+
+    private synchronized PageIndex ensureIndex() {
+        if (!valid) {
+            // set before walking the DOM so that changes done concurrently invalidate it again
+            valid = true;
+
+            Map<String, List<DomElement>> tags = new HashMap<>();
+            Map<String, Map<String, List<DomElement>>> attributes = new HashMap<>();
+            List<DomElement> all = new ArrayList<>();
+            for (DomElement element : page.getDomElementDescendants()) {
+                all.add(element);
+                tags.computeIfAbsent(element.getLocalName().toLowerCase(Locale.ROOT), key -> new ArrayList<>()).add(element);
+
+                for (DomAttr attr : element.getAttributesMap().values()) {
+                    attributes.computeIfAbsent(attr.getName().toLowerCase(Locale.ROOT), key -> new HashMap<>())
+                            .computeIfAbsent(attr.getValue(), key -> new ArrayList<>()).add(element);
+                }
+            }
+            tags.put("*", all);
+
+            byTag = tags;
+            byAttribute = attributes;
+        }
+
+        return this;
+    }
+
+    private final class Listener implements DomChangeListener, HtmlAttributeChangeListener {
+        @Override
+        public void nodeAdded(DomChangeEvent event) {
+            valid = false;
+        }
+
+        @Override
+        public void nodeDeleted(DomChangeEvent event) {
+            valid = false;
+        }
+
+        @Override
+        public void attributeAdded(HtmlAttributeChangeEvent event) {
+            valid = false;
+        }
+
+        @Override
+        public void attributeRemoved(HtmlAttributeChangeEvent event) {
+            valid = false;
+        }
+
+        @Override
+        public void attributeReplaced(HtmlAttributeChangeEvent event) {
+            valid = false;
+        }
+    }
+}
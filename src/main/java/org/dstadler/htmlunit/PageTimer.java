@@ -0,0 +1,205 @@
+package org.dstadler.htmlunit;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.htmlunit.FailingHttpStatusCodeException;
+import org.htmlunit.WebClient;
+import org.htmlunit.WebConnection;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
+import org.htmlunit.html.HtmlPage;
+import org.htmlunit.util.WebConnectionWrapper;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads pages like {@link HtmlUnitUtils#getInitialPage(WebClient, String)}, but
+ * measures where the time goes, so slow sites can be put on the resource-blocking
+ * or caching paths.
+ *
+ * The phases are:
+ * <ul>
+ *     <li>document: the requests for the page itself, including redirects</li>
+ *     <li>sub-resources: requests for scripts, frames, ... while the page is loaded</li>
+ *     <li>parse and script: the rest of loading the page, i.e. parsing the HTML and running scripts</li>
+ *     <li>background JavaScript: waiting for timers and XHR via {@link HtmlUnitUtils#waitForJavascript(WebClient, Duration, Duration)}</li>
+ * </ul>
+ *
+ * Network time is measured per request around the {@link WebConnection}, HtmlUnit
+ * does not report DNS-lookup, connect and download separately.
+ *
+ * <pre>
+ * PageTimer timer = new PageTimer(Duration.ofSeconds(5));
+ * timer.addListener((url, timings) -&gt; log.info(url + ": " + timings));
+ * HtmlPage page = timer.load(webClient, url).page();
+ * </pre>
+ */
+public class PageTimer {
+    private static final Log logger = LogFactory.getLog(PageTimer.class);
+
+    // periodic timers are usually polling and would never finish
+    private static final Duration IGNORE_PERIOD = Duration.ofSeconds(1);
+
+    private final Duration backgroundJavaScriptTimeout;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param backgroundJavaScriptTimeout How long to wait for background JavaScript
+     *                                    after the page is loaded, zero to not wait
+     */
+    public PageTimer(Duration backgroundJavaScriptTimeout) {
+        Preconditions.checkArgument(!backgroundJavaScriptTimeout.isNegative(),
+                "Cannot wait for a negative time, but had %s", backgroundJavaScriptTimeout);
+
+        this.backgroundJavaScriptTimeout = backgroundJavaScriptTimeout;
+    }
+
+    /**
+     * Is informed about the timings of each loaded page.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void timed(String url, Timings timings);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The time spent in each phase of loading a page, in nanoseconds.
+     *
+     * Requests can run in parallel to parsing and scripts, so the phases
+     * do not necessarily add up to the total.
+     *
+     * @param documentNanos Requests for the page itself, including redirects
+     * @param subResourceNanos Requests while the page was loaded, e.g. scripts and frames
+     * @param subResourceCount The number of requests while the page was loaded
+     * @param parseAndScriptNanos Loading the page without the time of requests
+     * @param backgroundJavaScriptNanos Waiting for background JavaScript
+     * @param backgroundRequestCount The number of requests while waiting for background JavaScript
+     * @param pendingJobs JavaScript jobs which were still pending after waiting
+     * @param totalNanos The time for loading the page and waiting for background JavaScript
+     */
+    public record Timings(long documentNanos, long subResourceNanos, int subResourceCount,
+                          long parseAndScriptNanos, long backgroundJavaScriptNanos, int backgroundRequestCount,
+                          int pendingJobs, long totalNanos) {
+        @Override
+        public String toString() {
+            return "document: " + TimeUnit.NANOSECONDS.toMillis(documentNanos) + "ms" +
+                    ", sub-resources: " + TimeUnit.NANOSECONDS.toMillis(subResourceNanos) + "ms (" + subResourceCount + " requests)" +
+                    ", parse and script: " + TimeUnit.NANOSECONDS.toMillis(parseAndScriptNanos) + "ms" +
+                    ", background JavaScript: " + TimeUnit.NANOSECONDS.toMillis(backgroundJavaScriptNanos) + "ms (" +
+                        backgroundRequestCount + " requests, " + pendingJobs + " jobs pending)" +
+                    ", total: " + TimeUnit.NANOSECONDS.toMillis(totalNanos) + "ms";
+        }
+    }
+
+    /**
+     * @param page The loaded page
+     * @param timings Where the time for loading it went
+     */
+    public record TimedPage(HtmlPage page, Timings timings) {
+    }
+
+    /**
+     * Load the page and wait for background JavaScript, measuring the time of each phase.
+     *
+     * @param webClient The client to load the page with, it should not be used
+     *                  concurrently while the page is loaded
+     * @param url The URL of the page
+     * @return The page together with the timings
+     * @throws IOException If loading the page fails
+     */
+    public TimedPage load(WebClient webClient, String url) throws IOException {
+        TimingWebConnection connection = new TimingWebConnection(webClient);
+        try {
+            long start = System.nanoTime();
+            final HtmlPage page;
+            try {
+                page = webClient.getPage(url);
+            } catch (FailingHttpStatusCodeException e) {
+                throw new IOException(e);
+            }
+            long loaded = System.nanoTime();
+            List<RequestTiming> loadRequests = connection.drain();
+
+            int pendingJobs = backgroundJavaScriptTimeout.isZero() ? 0 :
+                    HtmlUnitUtils.waitForJavascript(webClient, backgroundJavaScriptTimeout, IGNORE_PERIOD);
+            long end = System.nanoTime();
+            List<RequestTiming> backgroundRequests = connection.drain();
+
+            // everything up to the request which returned the page belongs to the document
+            long documentNanos = 0;
+            long subResourceNanos = 0;
+            int subResourceCount = 0;
+            boolean inDocument = true;
+            for (RequestTiming request : loadRequests) {
+                if (inDocument) {
+                    documentNanos += request.nanos;
+                    inDocument = !request.url.equals(page.getUrl().toExternalForm());
+                } else {
+                    subResourceNanos += request.nanos;
+                    subResourceCount++;
+                }
+            }
+
+            Timings timings = new Timings(documentNanos, subResourceNanos, subResourceCount,
+                    Math.max(0, loaded - start - documentNanos - subResourceNanos),
+                    end - loaded, backgroundRequests.size(), pendingJobs, end - start);
+            logger.debug("Loaded page " + url + ": " + timings);
+
+            for (Listener listener : listeners) {
+                listener.timed(url, timings);
+            }
+
+            return new TimedPage(page, timings);
+        } finally {
+            webClient.setWebConnection(connection.getWrappedWebConnection());
+        }
+    }
+
+    private record RequestTiming(String url, long nanos) {
+    }
+
+    /**
+     * Measures each request, installed only while a page is loaded.
+     */
+    private static final class TimingWebConnection extends WebConnectionWrapper {
+        // requests can also be sent by background JavaScript, guarded by "this"
+        private List<RequestTiming> requests = new ArrayList<>();
+
+        private TimingWebConnection(WebClient webClient) {
+            super(webClient);
+        }
+
+        @Override
+        public WebResponse getResponse(WebRequest request) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.getResponse(request);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                synchronized (this) {
+                    requests.add(new RequestTiming(request.getUrl().toExternalForm(), nanos));
+                }
+            }
+        }
+
+        private synchronized List<RequestTiming> drain() {
+            List<RequestTiming> drained = requests;
+            requests = new ArrayList<>();
+            return drained;
+        }
+    }
+}
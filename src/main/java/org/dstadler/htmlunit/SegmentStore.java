@@ -0,0 +1,511 @@
+package org.dstadler.htmlunit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Stores responses appended to a few large segment files instead of one file per page.
+ *
+ * An in-memory index maps each key to the location of its latest record, hits are
+ * read from memory-mapped segments without opening or stat'ing any file.
+ *
+ * Overwritten, removed and expired records stay in the segments until the segment is
+ * compacted, this happens in the background whenever a new segment is started: the
+ * records which are still used are copied to the current segment and the old segment
+ * is deleted. Expired records with an ETag or Last-Modified header are kept, they can
+ * still be revalidated with a conditional request.
+ *
+ * Removals are persisted by appending a tombstone, i.e. a record without a response,
+ * which hides the earlier records of the key when the segments are read again. A
+ * tombstone is copied when compacting as long as older segments still exist.
+ *
+ * Used by {@link WebPageFileCache} if configured via {@link WebPageFileCache.Builder#segmentSize(long)}.
+ */
+final class SegmentStore implements Closeable {
+    private static final Log logger = LogFactory.getLog(SegmentStore.class);
+
+    private static final String PREFIX = "segment-";
+    private static final String EXTENSION = ".seg";
+
+    // each record is: length of the record, storedAt, length of the key, key, response as written by CachedResponse,
+    // tombstones for removed keys have no response
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    // segments where less than this part is still used are compacted
+    private static final double COMPACT_RATIO = 0.5;
+
+    private final File directory;
+    private final long segmentSize;
+    private final LongPredicate canDrop;
+    private final Consumer<String> onExpired;
+
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+
+    // location of the tombstone of each removed key, as long as it is needed to hide older records
+    private final ConcurrentHashMap<String, Location> tombstones = new ConcurrentHashMap<>();
+
+    // all segments by id, the last one is the one where records are appended, guarded by "this"
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SegmentStore-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * @param directory Where the segment files are stored, existing segments are read
+     * @param segmentSize When a new segment is started
+     * @param canDrop Decides if a record with the given time of storing can be dropped when compacting,
+     *                records with validators are never dropped
+     * @param onExpired Is informed about keys which were dropped when compacting
+     * @throws IOException If the existing segments cannot be read
+     */
+    SegmentStore(File directory, long segmentSize, LongPredicate canDrop, Consumer<String> onExpired) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.canDrop = canDrop;
+        this.onExpired = onExpired;
+
+        load();
+    }
+
+    /**
+     * @param key The key of the response
+     * @return The stored response, null if there is none
+     * @throws IOException If the response cannot be read
+     */
+    CachedResponse get(String key) throws IOException {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+
+        int keyLength = key.length();
+        ByteBuffer data = location.segment.slice(location.offset + HEADER_BYTES + keyLength,
+                location.length - HEADER_BYTES - keyLength);
+        return CachedResponse.readFrom(new ByteBufferInputStream(data), location.storedAt);
+    }
+
+    /**
+     * Append the response, a previous response for the same key is replaced.
+     *
+     * @param key The key of the response
+     * @param response The response to store
+     * @return The number of bytes used for the record
+     * @throws IOException If the response cannot be written
+     */
+    long put(String key, CachedResponse response) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        response.writeTo(data);
+
+        ByteBuffer record = record(key, response.getStoredAt(), data.toByteArray());
+        append(key, record, response.getStoredAt(), response.hasValidators());
+
+        return record.capacity();
+    }
+
+    /**
+     * Remove the response, a tombstone is appended so that it is not read again after a restart.
+     *
+     * @param key The key of the response
+     * @throws IOException If the tombstone cannot be written
+     */
+    synchronized void remove(String key) throws IOException {
+        if (index.remove(key) == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        tombstones.put(key, write(record(key, now, new byte[0]), now, false));
+    }
+
+    private static ByteBuffer record(String key, long storedAt, byte[] data) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + data.length);
+        record.putInt(record.capacity());
+        record.putLong(storedAt);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        record.put(data);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * @param consumer Receives key, size and time of storing for all stored responses
+     */
+    void forEach(EntryConsumer consumer) {
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue().length, entry.getValue().storedAt);
+        }
+    }
+
+    interface EntryConsumer {
+        void accept(String key, long size, long storedAt);
+    }
+
+    /**
+     * Remove all segments.
+     *
+     * @throws IOException If the segments cannot be deleted
+     */
+    synchronized void clear() throws IOException {
+        index.clear();
+        tombstones.clear();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        compactor.shutdownNow();
+
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Copy the records which are still used and not expired from segments
+     * which are mostly unused to the current segment and delete these segments.
+     *
+     * @throws IOException If reading or writing segments fails
+     */
+    void compact() throws IOException {
+        // find out how much of each segment is still used
+        Map<Segment, List<Map.Entry<String, Location>>> used = new HashMap<>();
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            used.computeIfAbsent(entry.getValue().segment, segment -> new ArrayList<>()).add(entry);
+        }
+        Map<Segment, List<Map.Entry<String, Location>>> removed = new HashMap<>();
+        for (Map.Entry<String, Location> entry : tombstones.entrySet()) {
+            removed.computeIfAbsent(entry.getValue().segment, segment -> new ArrayList<>()).add(entry);
+        }
+
+        final List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            Segment active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            for (Segment segment : segments.values()) {
+                if (segment == active) {
+                    continue;
+                }
+
+                long usedBytes = 0;
+                for (Map.Entry<String, Location> entry : used.getOrDefault(segment, List.of())) {
+                    if (!canDrop(entry.getValue())) {
+                        usedBytes += entry.getValue().length;
+                    }
+                }
+                if (usedBytes < segment.size * COMPACT_RATIO) {
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        for (Segment segment : candidates) {
+            int copied = 0;
+            for (Map.Entry<String, Location> entry : used.getOrDefault(segment, List.of())) {
+                String key = entry.getKey();
+                Location location = entry.getValue();
+                if (canDrop(location)) {
+                    if (index.remove(key, location)) {
+                        onExpired.accept(key);
+                    }
+                    continue;
+                }
+
+                synchronized (this) {
+                    // only copy if the record was not replaced in the meantime
+                    if (index.get(key) == location) {
+                        append(key, location.segment.slice(location.offset, location.length), location.storedAt, location.validators);
+                        copied++;
+                    }
+                }
+            }
+
+            synchronized (this) {
+                for (Map.Entry<String, Location> entry : removed.getOrDefault(segment, List.of())) {
+                    String key = entry.getKey();
+                    Location location = entry.getValue();
+                    if (tombstones.get(key) != location) {
+                        // the key was stored again in the meantime
+                        continue;
+                    }
+
+                    // older segments may still contain records of the removed key
+                    if (segments.firstKey() < segment.id) {
+                        tombstones.put(key, write(location.segment.slice(location.offset, location.length), location.storedAt, false));
+                    } else {
+                        tombstones.remove(key);
+                    }
+                }
+
+                // readers may still hold locations in the segment, they use the mapping
+                // which stays valid after the channel is closed
+                segments.remove(segment.id);
+                segment.close();
+            }
+            if (!segment.file.delete()) {
+                logger.warn("Could not delete compacted segment " + segment.file);
+            }
+
+            logger.info("Compacted segment " + segment.file + ", copied " + copied + " records");
+        }
+    }
+
+    private boolean canDrop(Location location) {
+        return !location.validators && canDrop.test(location.storedAt);
+    }
+
+    private synchronized void append(String key, ByteBuffer record, long storedAt, boolean validators) throws IOException {
+        index.put(key, write(record, storedAt, validators));
+        tombstones.remove(key);
+    }
+
+    private synchronized Location write(ByteBuffer record, long storedAt, boolean validators) throws IOException {
+        int length = record.remaining();
+
+        Segment active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (active == null || (active.size > 0 && active.size + length > segmentSize)) {
+            if (active != null) {
+                active.mapFully();
+            }
+            active = createSegment(active == null ? 1 : active.id + 1);
+
+            if (segments.size() > 1) {
+                compactInBackground();
+            }
+        }
+
+        long offset = active.append(record);
+        return new Location(active, offset, length, storedAt, validators);
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        FileUtils.forceMkdir(directory);
+
+        Segment segment = new Segment(id, new File(directory, String.format("%s%08d%s", PREFIX, id, EXTENSION)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void compactInBackground() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.warn("Could not compact segments in " + directory, e);
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    private synchronized void load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(EXTENSION));
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            final int id;
+            try {
+                id = Integer.parseInt(name.substring(PREFIX.length(), name.length() - EXTENSION.length()));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring unexpected file " + file + " in " + directory);
+                continue;
+            }
+
+            segments.put(id, new Segment(id, file));
+        }
+
+        // read in the order of writing, later records replace earlier ones
+        int count = 0;
+        for (Segment segment : segments.values()) {
+            ByteBuffer buffer = segment.slice(0, Math.toIntExact(segment.size));
+            int end = 0;
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int length = buffer.getInt();
+                long storedAt = buffer.getLong();
+                int keyLength = buffer.getInt();
+                if (keyLength < 0 || length < HEADER_BYTES + keyLength || end + length > buffer.limit()) {
+                    break;
+                }
+
+                byte[] keyBytes = new byte[keyLength];
+                buffer.get(keyBytes);
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                Location location = new Location(segment, end, length, storedAt, false);
+
+                if (length == HEADER_BYTES + keyLength) {
+                    // a tombstone, the key was removed
+                    index.remove(key);
+                    tombstones.put(key, location);
+                } else {
+                    // only the headers are needed to know if the record can be revalidated
+                    try {
+                        location = new Location(segment, end, length, storedAt, CachedResponse.readHeaders(new ByteBufferInputStream(
+                                buffer.slice(buffer.position(), length - HEADER_BYTES - keyLength)), storedAt).hasValidators());
+                    } catch (IOException e) {
+                        // reading the full record will fail as well, so it is dropped when compacting
+                        logger.warn("Could not read headers of record at " + end + " in " + segment.file + ": " + e);
+                    }
+
+                    index.put(key, location);
+                    tombstones.remove(key);
+                }
+                count++;
+
+                end += length;
+                buffer.position(end);
+            }
+
+            if (end < segment.size) {
+                // e.g. the process was killed while writing a record
+                logger.warn("Truncating incomplete record at " + end + " in " + segment.file);
+                segment.truncate(end);
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            for (Segment segment : segments.headMap(segments.lastKey()).values()) {
+                segment.mapFully();
+            }
+        }
+
+        logger.info("Read " + count + " records from " + segments.size() + " segments in " + directory);
+    }
+
+    private record Location(Segment segment, long offset, int length, long storedAt, boolean validators) {
+    }
+
+    private static final class Segment implements Closeable {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+
+        // written bytes, guarded by the SegmentStore
+        private long size;
+
+        // mapping of the segment, replaced by a larger one when records beyond it are read
+        // while the segment is active, afterwards it covers the whole segment
+        private volatile MappedByteBuffer mapped;
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        private long append(ByteBuffer record) throws IOException {
+            long offset = size;
+            long position = offset;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            size = position;
+            return offset;
+        }
+
+        private ByteBuffer slice(long offset, int length) throws IOException {
+            MappedByteBuffer buffer = mapped;
+            if (buffer == null || offset + length > buffer.capacity()) {
+                synchronized (this) {
+                    buffer = mapped;
+                    if (buffer == null || offset + length > buffer.capacity()) {
+                        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        mapped = buffer;
+                    }
+                }
+            }
+
+            return buffer.slice(Math.toIntExact(offset), length);
+        }
+
+        /**
+         * Called when no more records are appended, readers then never need
+         * the channel, which is closed when the segment is compacted while
+         * they may still read from it.
+         */
+        private synchronized void mapFully() throws IOException {
+            if (mapped == null || mapped.capacity() < size) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        private void truncate(long length) throws IOException {
+            channel.truncate(length);
+            size = length;
+            mapped = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
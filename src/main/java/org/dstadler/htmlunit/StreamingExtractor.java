@@ -0,0 +1,325 @@
+package org.dstadler.htmlunit;
+
+import com.google.common.base.Preconditions;
+import org.htmlunit.FailingHttpStatusCodeException;
+import org.htmlunit.WebClient;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
+import org.htmlunit.cyberneko.parsers.SAXParser;
+import org.htmlunit.util.UrlUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Extract elements from HTML while it is parsed, without building the DOM
+ * of an {@link org.htmlunit.html.HtmlPage} and without running JavaScript.
+ *
+ * Elements are selected by the same criteria as the lookups in {@link HtmlUnitUtils},
+ * i.e. by tag-name, attribute-value or text contents, and passed to a handler
+ * as soon as their end-tag is parsed, so nested elements are reported before the
+ * elements which contain them. Only the attributes and the text of elements
+ * which can still match are kept, so memory stays flat also for large pages.
+ *
+ * <pre>
+ * StreamingExtractor extractor = StreamingExtractor.builder()
+ *      .tag("a")
+ *      .textContents("span", "Price")
+ *      .build();
+ * extractor.extract(webClient, url, match -&gt; links.add(match.getAttribute("href")));
+ * </pre>
+ */
+public class StreamingExtractor {
+    private final List<Rule> rules;
+
+    private StreamingExtractor(Builder builder) {
+        this.rules = List.copyOf(builder.rules);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Receives the elements which match one of the criteria.
+     */
+    @FunctionalInterface
+    public interface MatchHandler {
+        void handle(Match match);
+    }
+
+    /**
+     * An element which matched one of the criteria.
+     *
+     * @param tagName The tag-name in lower-case
+     * @param attributes The attributes of the element with lower-case names, in the order of the HTML
+     * @param text The text contents of the element including all nested elements
+     */
+    public record Match(String tagName, Map<String, String> attributes, String text) {
+        /**
+         * @param name The name of the attribute, case-insensitive
+         * @return The value of the attribute, an empty string if it is not set like {@link org.htmlunit.html.DomElement#getAttribute(String)}
+         */
+        public String getAttribute(String name) {
+            return attributes.getOrDefault(name.toLowerCase(Locale.ROOT), "");
+        }
+    }
+
+    /**
+     * Fetch the given URL and extract from the response, the response is
+     * not parsed into a page and no JavaScript is executed.
+     *
+     * A failing status code is reported as exception if the client is configured
+     * via {@link org.htmlunit.WebClientOptions#setThrowExceptionOnFailingStatusCode(boolean)},
+     * otherwise the body of the error-response is used, like HtmlUnit does for pages.
+     *
+     * @param webClient The client to fetch the URL with
+     * @param url The URL to fetch
+     * @param handler Receives the matching elements
+     * @return The number of matching elements
+     * @throws IOException If fetching or parsing fails or the server responded with a failing status code
+     */
+    public int extract(WebClient webClient, String url, MatchHandler handler) throws IOException {
+        WebResponse response = webClient.loadWebResponse(new WebRequest(UrlUtils.toUrlUnsafe(url)));
+        try {
+            webClient.throwFailingHttpStatusCodeExceptionIfNecessary(response);
+
+            try (InputStream stream = response.getContentAsStream()) {
+                return extract(new InputStreamReader(stream, response.getContentCharset()), handler);
+            }
+        } catch (FailingHttpStatusCodeException e) {
+            throw new IOException(e);
+        } finally {
+            response.cleanUp();
+        }
+    }
+
+    /**
+     * @param stream The HTML to parse
+     * @param charset The encoding of the HTML
+     * @param handler Receives the matching elements
+     * @return The number of matching elements
+     * @throws IOException If reading or parsing fails
+     */
+    public int extract(InputStream stream, Charset charset, MatchHandler handler) throws IOException {
+        return extract(new InputStreamReader(stream, charset), handler);
+    }
+
+    /**
+     * @param reader The HTML to parse
+     * @param handler Receives the matching elements
+     * @return The number of matching elements
+     * @throws IOException If reading or parsing fails
+     */
+    public int extract(Reader reader, MatchHandler handler) throws IOException {
+        ExtractingHandler extracting = new ExtractingHandler(handler);
+
+        SAXParser parser = new SAXParser();
+        parser.setContentHandler(extracting);
+        try {
+            parser.parse(new InputSource(reader));
+        } catch (SAXException e) {
+            throw new IOException("Could not parse HTML: " + e, e);
+        }
+
+        return extracting.count;
+    }
+
+    private enum Kind {
+        TAG, ATTRIBUTE, ATTRIBUTE_CONTAINS, TEXT
+    }
+
+    private record Rule(Kind kind, String tagName, String attribute, String value) {
+        // "*" matches all elements like for getElementsByTagName()
+        private boolean matchesTag(String tag) {
+            return tagName.equals("*") || tagName.equals(tag);
+        }
+
+        private boolean matchesStart(String tag, Attributes attributes) {
+            if (!matchesTag(tag)) {
+                return false;
+            }
+
+            return switch (kind) {
+                case TAG -> true;
+                case ATTRIBUTE -> getValue(attributes, attribute).equals(value);
+                case ATTRIBUTE_CONTAINS -> getValue(attributes, attribute).contains(value);
+                case TEXT -> false;
+            };
+        }
+
+        private boolean matchesEnd(String tag, String text) {
+            return kind == Kind.TEXT && matchesTag(tag) && text.equals(value);
+        }
+
+        private static String getValue(Attributes attributes, String name) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                if (name.equalsIgnoreCase(getName(attributes, i))) {
+                    return attributes.getValue(i);
+                }
+            }
+            return "";
+        }
+    }
+
+    private static String getName(Attributes attributes, int index) {
+        String name = attributes.getLocalName(index);
+        return name == null || name.isEmpty() ? attributes.getQName(index) : name;
+    }
+
+    private final class ExtractingHandler extends DefaultHandler {
+        private final MatchHandler handler;
+
+        // one entry per open element, only candidates have attributes and text
+        private final Deque<OpenElement> open = new ArrayDeque<>();
+
+        // the text of all open candidates, each piece of text is added to all of them
+        private final List<StringBuilder> collecting = new ArrayList<>();
+
+        private int count;
+
+        private ExtractingHandler(MatchHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            String tag = (localName == null || localName.isEmpty() ? qName : localName).toLowerCase(Locale.ROOT);
+
+            boolean matched = false;
+            boolean candidate = false;
+            for (Rule rule : rules) {
+                if (rule.matchesStart(tag, attributes)) {
+                    matched = true;
+                    candidate = true;
+                    break;
+                }
+                if (rule.kind == Kind.TEXT && rule.matchesTag(tag)) {
+                    candidate = true;
+                }
+            }
+
+            if (!candidate) {
+                open.push(OpenElement.IGNORED);
+                return;
+            }
+
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                values.put(getName(attributes, i).toLowerCase(Locale.ROOT), attributes.getValue(i));
+            }
+
+            StringBuilder text = new StringBuilder();
+            collecting.add(text);
+            open.push(new OpenElement(tag, Collections.unmodifiableMap(values), text, matched));
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            for (StringBuilder text : collecting) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            OpenElement element = open.pollFirst();
+            if (element == null || element.text == null) {
+                return;
+            }
+
+            collecting.removeLast();
+
+            String text = element.text.toString();
+            boolean matched = element.matched;
+            for (int i = 0; !matched && i < rules.size(); i++) {
+                matched = rules.get(i).matchesEnd(element.tag, text);
+            }
+
+            if (matched) {
+                count++;
+                handler.handle(new Match(element.tag, element.attributes, text));
+            }
+        }
+    }
+
+    private record OpenElement(String tag, Map<String, String> attributes, StringBuilder text, boolean matched) {
+        private static final OpenElement IGNORED = new OpenElement(null, null, null, false);
+    }
+
+    public static final class Builder {
+        private final List<Rule> rules = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * @param tagName Extract all elements with this tag-name, e.g. "a" for all links, or "*" for all elements
+         * @return This builder
+         */
+        public Builder tag(String tagName) {
+            return add(Kind.TAG, tagName, null, null);
+        }
+
+        /**
+         * Same criteria as {@link HtmlUnitUtils#getElementsByAttribute(org.htmlunit.html.HtmlPage, String, String, String, Class)}.
+         *
+         * @param tagName The tag-name of the elements
+         * @param attribute The name of the attribute
+         * @param value The value that the attribute should have
+         * @return This builder
+         */
+        public Builder attribute(String tagName, String attribute, String value) {
+            return add(Kind.ATTRIBUTE, tagName, Preconditions.checkNotNull(attribute), Preconditions.checkNotNull(value));
+        }
+
+        /**
+         * Same criteria as {@link HtmlUnitUtils#getElementsByAttributeContains(org.htmlunit.html.HtmlPage, String, String, String, Class)}.
+         *
+         * @param tagName The tag-name of the elements
+         * @param attribute The name of the attribute
+         * @param value The value that the attribute should contain
+         * @return This builder
+         */
+        public Builder attributeContains(String tagName, String attribute, String value) {
+            return add(Kind.ATTRIBUTE_CONTAINS, tagName, Preconditions.checkNotNull(attribute), Preconditions.checkNotNull(value));
+        }
+
+        /**
+         * Same criteria as {@link HtmlUnitUtils#getElementsByTextContents(org.htmlunit.html.HtmlPage, String, String, Class)}.
+         *
+         * @param tagName The tag-name of the elements
+         * @param text The text that the element should have
+         * @return This builder
+         */
+        public Builder textContents(String tagName, String text) {
+            return add(Kind.TEXT, tagName, null, Preconditions.checkNotNull(text));
+        }
+
+        public StreamingExtractor build() {
+            Preconditions.checkState(!rules.isEmpty(), "Need at least one criteria for extracting elements");
+            return new StreamingExtractor(this);
+        }
+
+        private Builder add(Kind kind, String tagName, String attribute, String value) {
+            Preconditions.checkArgument(tagName != null && !tagName.isEmpty(), "Need a tag-name, but had '%s'", tagName);
+            rules.add(new Rule(kind, tagName.toLowerCase(Locale.ROOT), attribute, value));
+            return this;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.dstadler.htmlunit;
+
+import org.htmlunit.SgmlPage;
+import org.htmlunit.html.CharacterDataChangeEvent;
+import org.htmlunit.html.CharacterDataChangeListener;
+import org.htmlunit.html.DomChangeEvent;
+import org.htmlunit.html.DomChangeListener;
+import org.htmlunit.html.DomNode;
+import org.htmlunit.html.HtmlAttributeChangeEvent;
+import org.htmlunit.html.HtmlAttributeChangeListener;
+import org.htmlunit.html.HtmlPage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Listens for changes of a page and checks the changed nodes for the
+ * expected text. As the text may also be spread across several changed
+ * nodes, the full page is checked as well, but at most once per
+ * {@value #DEBOUNCE_MILLIS} milliseconds, so the page does not need to
+ * be serialized completely whenever something changes.
+ *
+ * Used by {@link HtmlUnitUtils#waitForText(SgmlPage, String, java.time.Duration)}.
+ */
+class TextChangeWaiter implements DomChangeListener, CharacterDataChangeListener, HtmlAttributeChangeListener, AutoCloseable {
+    static final long DEBOUNCE_MILLIS = 100;
+
+    private final SgmlPage page;
+    private final String text;
+    private final CountDownLatch found = new CountDownLatch(1);
+
+    // set for changes which did not contain the text by themselves
+    private final AtomicBoolean changed = new AtomicBoolean();
+
+    TextChangeWaiter(SgmlPage page, String text) {
+        this.page = page;
+        this.text = text;
+
+        page.addDomChangeListener(this);
+        page.addCharacterDataChangeListener(this);
+        if (page instanceof HtmlPage htmlPage) {
+            htmlPage.addHtmlAttributeChangeListener(this);
+        }
+    }
+
+    /**
+     * @param timeoutMillis How long to wait at most
+     * @return true if a change added the text, false if the time ran out
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    boolean await(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+
+            if (found.await(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS)), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+
+            // collect the changes of the last interval into one check of the full page
+            if (changed.getAndSet(false) && page.asXml().contains(text)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void nodeAdded(DomChangeEvent event) {
+        check(event.getChangedNode());
+    }
+
+    @Override
+    public void nodeDeleted(DomChangeEvent event) {
+        // removing nodes does not make the text appear
+    }
+
+    @Override
+    public void characterDataChanged(CharacterDataChangeEvent event) {
+        if (event.getSource() instanceof DomNode node) {
+            check(node);
+        }
+    }
+
+    @Override
+    public void attributeAdded(HtmlAttributeChangeEvent event) {
+        check(event.getHtmlElement());
+    }
+
+    @Override
+    public void attributeRemoved(HtmlAttributeChangeEvent event) {
+        // removing attributes does not make the text appear
+    }
+
+    @Override
+    public void attributeReplaced(HtmlAttributeChangeEvent event) {
+        check(event.getHtmlElement());
+    }
+
+    private void check(DomNode node) {
+        if (found.getCount() == 0 || node == null) {
+            return;
+        }
+
+        if (node.asXml().contains(text)) {
+            found.countDown();
+        } else {
+            changed.set(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        page.removeDomChangeListener(this);
+        page.removeCharacterDataChangeListener(this);
+        if (page instanceof HtmlPage htmlPage) {
+            htmlPage.removeHtmlAttributeChangeListener(this);
+        }
+    }
+}
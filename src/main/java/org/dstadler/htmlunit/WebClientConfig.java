@@ -0,0 +1,222 @@
+package org.dstadler.htmlunit;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.htmlunit.BrowserVersion;
+import org.htmlunit.HttpWebConnection;
+import org.htmlunit.WebClient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The settings for creating a {@link WebClient} via {@link HtmlUnitUtils#createWebClient(WebClientConfig)}.
+ *
+ * The defaults are the same as used by {@link HtmlUnitUtils#createWebClient(boolean, BrowserVersion)}.
+ *
+ * <pre>
+ * WebClientConfig config = WebClientConfig.builder()
+ *      .javaScript(false)
+ *      .timeout(10, TimeUnit.SECONDS)
+ *      .resourceFilter(BlockingWebConnection.builder().skipResources())
+ *      .build();
+ * WebClient webClient = HtmlUnitUtils.createWebClient(config);
+ * </pre>
+ */
+public final class WebClientConfig {
+    private final BrowserVersion browserVersion;
+    private final boolean javaScript;
+    private final boolean css;
+    private final boolean redirects;
+    private final boolean downloadImages;
+    private final long timeoutMillis;
+    private final long waitForBackgroundJavaScriptMillis;
+    private final int maxConnectionsPerHost;
+    private final int maxConnections;
+    private final BlockingWebConnection.Builder resourceFilter;
+
+    private WebClientConfig(Builder builder) {
+        this.browserVersion = builder.browserVersion;
+        this.javaScript = builder.javaScript;
+        this.css = builder.css;
+        this.redirects = builder.redirects;
+        this.downloadImages = builder.downloadImages;
+        this.timeoutMillis = builder.timeoutMillis;
+        this.waitForBackgroundJavaScriptMillis = builder.waitForBackgroundJavaScriptMillis;
+        this.maxConnectionsPerHost = builder.maxConnectionsPerHost;
+        this.maxConnections = builder.maxConnections;
+        this.resourceFilter = builder.resourceFilter;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public BrowserVersion getBrowserVersion() {
+        return browserVersion;
+    }
+
+    public boolean isJavaScript() {
+        return javaScript;
+    }
+
+    /**
+     * Apply the settings to a newly created client.
+     */
+    void apply(WebClient webClient) {
+        webClient.waitForBackgroundJavaScriptStartingBefore(waitForBackgroundJavaScriptMillis);
+        webClient.getOptions().setTimeout(Math.toIntExact(timeoutMillis));
+        webClient.getOptions().setJavaScriptEnabled(javaScript);
+        webClient.getOptions().setCssEnabled(css);
+        webClient.getOptions().setRedirectEnabled(redirects);
+        webClient.getOptions().setDownloadImages(downloadImages);
+
+        if (maxConnectionsPerHost > 0 || maxConnections > 0) {
+            webClient.getWebConnection().close();
+            webClient.setWebConnection(new PoolingHttpWebConnection(webClient, maxConnectionsPerHost, maxConnections));
+        }
+
+        // installed last, so it wraps the actual connection
+        if (resourceFilter != null) {
+            resourceFilter.install(webClient);
+        }
+    }
+
+    /**
+     * Sizes the pool of HTTP connections of the client instead of using the defaults of HtmlUnit.
+     */
+    private static final class PoolingHttpWebConnection extends HttpWebConnection {
+        private final int maxConnectionsPerHost;
+        private final int maxConnections;
+
+        private PoolingHttpWebConnection(WebClient webClient, int maxConnectionsPerHost, int maxConnections) {
+            super(webClient);
+
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            this.maxConnections = maxConnections;
+        }
+
+        @Override
+        protected HttpClientBuilder createHttpClientBuilder() {
+            // HtmlUnit creates its connection manager with the limits of the builder
+            HttpClientBuilder builder = super.createHttpClientBuilder();
+            if (maxConnectionsPerHost > 0) {
+                builder.setMaxConnPerRoute(maxConnectionsPerHost);
+            }
+            if (maxConnections > 0) {
+                builder.setMaxConnTotal(maxConnections);
+            }
+            return builder;
+        }
+    }
+
+    public static final class Builder {
+        private BrowserVersion browserVersion = BrowserVersion.FIREFOX_ESR;
+        private boolean javaScript = true;
+        private boolean css = false;
+        private boolean redirects = true;
+        private boolean downloadImages = false;
+        private long timeoutMillis = 60_000;
+        private long waitForBackgroundJavaScriptMillis = 1000;
+        private int maxConnectionsPerHost = 0;
+        private int maxConnections = 0;
+        private BlockingWebConnection.Builder resourceFilter = null;
+
+        private Builder() {
+        }
+
+        /**
+         * @param browserVersion Which browser the client should emulate
+         * @return This builder
+         */
+        public Builder browserVersion(BrowserVersion browserVersion) {
+            this.browserVersion = Preconditions.checkNotNull(browserVersion);
+            return this;
+        }
+
+        /**
+         * @param enabled If the client should execute JavaScript
+         * @return This builder
+         */
+        public Builder javaScript(boolean enabled) {
+            this.javaScript = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled If the client should apply stylesheets, off by default
+         * @return This builder
+         */
+        public Builder css(boolean enabled) {
+            this.css = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled If the client should follow redirects
+         * @return This builder
+         */
+        public Builder redirects(boolean enabled) {
+            this.redirects = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled If images should be downloaded when the page is loaded, off by default
+         * @return This builder
+         */
+        public Builder downloadImages(boolean enabled) {
+            this.downloadImages = enabled;
+            return this;
+        }
+
+        /**
+         * @param duration The connection- and socket-timeout for requests, 0 for no timeout
+         * @param unit The unit of duration
+         * @return This builder
+         */
+        public Builder timeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "Cannot use a negative timeout, but had %s", duration);
+            Preconditions.checkArgument(unit.toMillis(duration) <= Integer.MAX_VALUE, "Timeout is too large: %s %s", duration, unit);
+            this.timeoutMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * @param duration Background JavaScript which starts within this time after loading a page
+         *                 is waited for, see {@link WebClient#waitForBackgroundJavaScriptStartingBefore(long)}
+         * @param unit The unit of duration
+         * @return This builder
+         */
+        public Builder waitForBackgroundJavaScript(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "Cannot wait for a negative time, but had %s", duration);
+            this.waitForBackgroundJavaScriptMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * @param perHost How many connections are kept open to one host at the same time
+         * @param total How many connections are kept open at the same time overall
+         * @return This builder
+         */
+        public Builder connectionPool(int perHost, int total) {
+            Preconditions.checkArgument(perHost > 0, "Need at least one connection per host, but had %s", perHost);
+            Preconditions.checkArgument(total >= perHost, "Need at least as many connections as per host, but had %s and %s", total, perHost);
+            this.maxConnectionsPerHost = perHost;
+            this.maxConnections = total;
+            return this;
+        }
+
+        /**
+         * @param resourceFilter The rules for blocking requests, installed as {@link BlockingWebConnection}
+         * @return This builder
+         */
+        public Builder resourceFilter(BlockingWebConnection.Builder resourceFilter) {
+            this.resourceFilter = resourceFilter;
+            return this;
+        }
+
+        public WebClientConfig build() {
+            return new WebClientConfig(this);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.dstadler.htmlunit;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.htmlunit.BrowserVersion;
+import org.htmlunit.TopLevelWindow;
+import org.htmlunit.WebClient;
+import org.htmlunit.WebWindow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of {@link WebClient} instances, so that not every task
+ * needs to pay for creating a new client and JavaScript engine via
+ * {@link HtmlUnitUtils#createWebClient(boolean, BrowserVersion)}.
+ *
+ * Clients are pooled per {@link BrowserVersion} and JavaScript-flag. Returned clients
+ * are reset, clients which were idle for too long are evicted and clients are closed
+ * after a maximum number of uses to cap the memory growth of HtmlUnit over time.
+ *
+ * <pre>
+ * try (WebClientPool.Lease lease = pool.borrow(false, BrowserVersion.FIREFOX_ESR)) {
+ *     HtmlPage page = HtmlUnitUtils.getInitialPage(lease.getClient(), url);
+ *     ...
+ * }
+ * </pre>
+ */
+public class WebClientPool implements AutoCloseable {
+    private static final Log logger = LogFactory.getLog(WebClientPool.class);
+
+    private final int maxClientsPerKey;
+    private final long maxIdleMillis;
+    private final int maxUsesPerClient;
+
+    private final Map<Key, Slot> slots = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Create a pool with one client per available processor for each
+     * combination of browser-version and JavaScript-flag, an idle-timeout of
+     * 5 minutes and at most 100 uses per client.
+     */
+    public WebClientPool() {
+        this(Runtime.getRuntime().availableProcessors(), 5, TimeUnit.MINUTES, 100);
+    }
+
+    /**
+     * @param maxClientsPerKey How many clients can be leased at the same time for one
+     *                         combination of browser-version and JavaScript-flag, further calls
+     *                         to borrow() block until a client is returned.
+     * @param maxIdle How long a client can stay unused in the pool before it is closed
+     * @param unit The unit of maxIdle
+     * @param maxUsesPerClient After how many leases a client is closed instead of being put back into the pool
+     */
+    public WebClientPool(int maxClientsPerKey, long maxIdle, TimeUnit unit, int maxUsesPerClient) {
+        Preconditions.checkArgument(maxClientsPerKey > 0, "Need at least one client per key, but had %s", maxClientsPerKey);
+        Preconditions.checkArgument(maxIdle >= 0, "Cannot use a negative idle-time, but had %s", maxIdle);
+        Preconditions.checkArgument(maxUsesPerClient > 0, "Need to allow at least one use per client, but had %s", maxUsesPerClient);
+
+        this.maxClientsPerKey = maxClientsPerKey;
+        this.maxIdleMillis = unit.toMillis(maxIdle);
+        this.maxUsesPerClient = maxUsesPerClient;
+    }
+
+    public Lease borrow() throws InterruptedException {
+        return borrow(true);
+    }
+
+    public Lease borrow(boolean enableJavaScript) throws InterruptedException {
+        return borrow(enableJavaScript, BrowserVersion.FIREFOX_ESR);
+    }
+
+    /**
+     * Get a client from the pool or create a new one if none is available.
+     *
+     * Blocks if already the maximum number of clients are leased for the
+     * given browser-version and JavaScript-flag.
+     *
+     * @param enableJavaScript If the client should execute JavaScript
+     * @param browserVersion Which browser the client should emulate
+     * @return A lease which returns the client to the pool when it is closed
+     * @throws InterruptedException If the thread is interrupted while waiting for a free client
+     * @throws IllegalStateException If the pool is closed already
+     */
+    public Lease borrow(boolean enableJavaScript, BrowserVersion browserVersion) throws InterruptedException {
+        Preconditions.checkState(!closed, "Cannot borrow clients from a closed pool");
+
+        Slot slot = slots.computeIfAbsent(new Key(browserVersion, enableJavaScript), key -> new Slot(maxClientsPerKey));
+        slot.permits.acquire();
+
+        try {
+            PooledClient pooled;
+            List<PooledClient> evicted = new ArrayList<>();
+            synchronized (slot) {
+                long now = System.currentTimeMillis();
+                while (!slot.idle.isEmpty() && now - slot.idle.peekLast().returnedAt > maxIdleMillis) {
+                    evicted.add(slot.idle.pollLast());
+                }
+
+                // use the most recently returned client, it is most likely still "warm"
+                pooled = slot.idle.pollFirst();
+            }
+
+            for (PooledClient client : evicted) {
+                logger.debug("Closing client which was idle for more than " + maxIdleMillis + "ms");
+                client.client.close();
+            }
+
+            if (pooled == null) {
+                pooled = new PooledClient(HtmlUnitUtils.createWebClient(enableJavaScript, browserVersion));
+            }
+
+            pooled.uses++;
+
+            return new Lease(slot, pooled);
+        } catch (RuntimeException e) {
+            slot.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of clients which are currently unused in the pool
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                count += slot.idle.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close all idle clients. Clients which are currently leased
+     * are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Slot slot : slots.values()) {
+            List<PooledClient> clients;
+            synchronized (slot) {
+                clients = new ArrayList<>(slot.idle);
+                slot.idle.clear();
+            }
+
+            for (PooledClient client : clients) {
+                client.client.close();
+            }
+        }
+    }
+
+    private void release(Slot slot, PooledClient pooled, boolean invalid) {
+        try {
+            if (invalid || closed || pooled.uses >= maxUsesPerClient) {
+                logger.debug("Closing client after " + pooled.uses + " uses");
+                pooled.client.close();
+                return;
+            }
+
+            try {
+                reset(pooled.client);
+            } catch (RuntimeException e) {
+                logger.warn("Could not reset client, closing it instead of returning it to the pool", e);
+                pooled.client.close();
+                return;
+            }
+
+            pooled.returnedAt = System.currentTimeMillis();
+            synchronized (slot) {
+                // close() sets the flag before draining the slot under this lock,
+                // so checking it here ensures that no client is added after draining
+                if (!closed) {
+                    slot.idle.addFirst(pooled);
+                    return;
+                }
+            }
+
+            logger.debug("Closing client as the pool was closed");
+            pooled.client.close();
+        } finally {
+            slot.permits.release();
+        }
+    }
+
+    private static void reset(WebClient client) {
+        // stop any timers and other background JavaScript
+        for (WebWindow window : client.getWebWindows()) {
+            window.getJobManager().removeAllJobs();
+        }
+
+        // closing the last window makes HtmlUnit open a new, empty one
+        for (TopLevelWindow window : new ArrayList<>(client.getTopLevelWindows())) {
+            window.close();
+        }
+
+        client.getCookieManager().clearCookies();
+    }
+
+    /**
+     * A client borrowed from the pool, closing the lease returns
+     * the client to the pool.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Slot slot;
+        private final PooledClient pooled;
+        private boolean released;
+        private boolean invalid;
+
+        private Lease(Slot slot, PooledClient pooled) {
+            this.slot = slot;
+            this.pooled = pooled;
+        }
+
+        public WebClient getClient() {
+            Preconditions.checkState(!released, "The client was already returned to the pool");
+            return pooled.client;
+        }
+
+        /**
+         * Do not return the client to the pool, but close it when
+         * the lease is closed, e.g. if it ended up in an unusable state.
+         */
+        public void invalidate() {
+            invalid = true;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+
+            release(slot, pooled, invalid);
+        }
+    }
+
+    private record Key(BrowserVersion browserVersion, boolean enableJavaScript) {
+    }
+
+    private static final class Slot {
+        private final Semaphore permits;
+        private final Deque<PooledClient> idle = new ArrayDeque<>();
+
+        private Slot(int maxClients) {
+            permits = new Semaphore(maxClients);
+        }
+    }
+
+    private static final class PooledClient {
+        private final WebClient client;
+        private int uses;
+        private long returnedAt;
+
+        private PooledClient(WebClient client) {
+            this.client = client;
+        }
+    }
+}
@@ -1,53 +1,566 @@
 package org.dstadler.htmlunit;
 
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.Hashing;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.htmlunit.BrowserVersion;
+import org.htmlunit.FailingHttpStatusCodeException;
+import org.htmlunit.Page;
 import org.htmlunit.WebClient;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
 import org.htmlunit.html.HtmlPage;
+import org.htmlunit.util.UrlUtils;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
+ * A simple cache for web-pages to avoid fetching the same content again and again.
+ *
+ * Pages are stored as files in a directory, optionally with an in-memory tier
+ * in front of it. Use {@link #builder()} to configure directory, timeout and size-limits.
  *
  * @author cwat-dstadler
  */
-public class WebPageFileCache {
+public class WebPageFileCache implements Closeable {
     private static final Log logger = LogFactory.getLog(WebPageFileCache.class);
 
-    private static final File CACHE_DIR = new File(System.getProperty("java.io.tmpdir"), "htmlunit-cache");
+    private static final File DEFAULT_CACHE_DIR = new File(System.getProperty("java.io.tmpdir"), "htmlunit-cache");
+
+    // How long we use the cached files by default
+    private static final long DEFAULT_CACHE_FILE_TIMEOUT = TimeUnit.HOURS.toMillis(20);
+
+    private static final String EXTENSION_SAVED = ".html";
+    private static final String EXTENSION_RAW = ".response";
+    private static final String EXTENSION_COMPRESSED = ".response.gz";
+    private static final String EXTENSION_VALIDATORS = ".validators";
+
+    // prefix of temporary files and directories which are moved into place when complete
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    // temporary files younger than this may still be written by another instance using the same directory
+    private static final long TEMP_FILE_MIN_AGE = TimeUnit.HOURS.toMillis(1);
+
+    // compressed files are stored in sub-directories named after this many characters of the key
+    private static final int SHARD_LENGTH = 2;
+
+    private static final int DEFAULT_REFRESH_THREADS = 2;
+    private static final int PREFETCH_USES_PER_CLIENT = 100;
+    private static final int MAX_PENDING_REFRESHES = 1000;
+
+    // slices of memory-mapped segments are addressed with int offsets
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE / 2;
+
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+
+    private final File cacheDir;
+    private final long cacheFileTimeout;
+    private final long maxTotalBytes;
+    private final boolean rawResponses;
+    private final boolean compressed;
+    private final String extension;
+
+    // refreshes expired pages in the background if stale-while-revalidate is enabled
+    private final ThreadPoolExecutor refresher;
+    private final Supplier<WebClient> refreshClients;
+    private final long maxStale;
+
+    // optional store which appends all responses to a few large files instead of one file per page
+    private final SegmentStore segments;
+
+    // optional in-memory tier in front of the files, keeps the raw responses
+    private final Cache<String, CachedResponse> memoryCache;
 
-    // How long we use the cached files
-    private static final long CACHE_FILE_TIMEOUT = TimeUnit.HOURS.toMillis(20);
+    // the files in the cache directory in least-recently-used order, built with
+    // one directory scan at startup so that lookups do not need to access the files
+    private final LinkedHashMap<String, IndexEntry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    // pages which are currently loaded, other threads wait for these instead of loading the page again
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong fileHits = new AtomicLong();
+    private final AtomicLong fileMisses = new AtomicLong();
+    private final AtomicLong fileEvictions = new AtomicLong();
+    private final AtomicLong fileRevalidations = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+
+    private final LatencyHistogram loadTimes = new LatencyHistogram();
+    private final LatencyHistogram restoreTimes = new LatencyHistogram();
+    private final LatencyHistogram storeTimes = new LatencyHistogram();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // set when the metrics are registered via JMX
+    private volatile ObjectName mbeanName;
+
+    /**
+     * Create a cache which only stores pages on disk in the default
+     * location with the default timeout and without size-limit.
+     */
+    public WebPageFileCache() {
+        this(builder());
+    }
+
+    /**
+     * Create a cache which keeps the responses of recently used pages in memory
+     * in addition to the files on disk, so that hits do not need to read and
+     * parse the file again.
+     *
+     * @param maxMemoryBytes The maximum size of the bodies of the responses
+     *                       which are kept in memory, 0 disables the in-memory cache.
+     */
+    public WebPageFileCache(long maxMemoryBytes) {
+        this(builder().maxMemoryBytes(maxMemoryBytes));
+    }
+
+    private WebPageFileCache(Builder builder) {
+        this.cacheDir = builder.directory;
+        this.cacheFileTimeout = builder.timeoutMillis;
+        this.maxTotalBytes = builder.maxTotalBytes;
+        this.compressed = builder.compressed;
+        this.rawResponses = builder.rawResponses || compressed || builder.segmentSize > 0;
+        this.extension = compressed ? EXTENSION_COMPRESSED : rawResponses ? EXTENSION_RAW : EXTENSION_SAVED;
+
+        if (builder.maxMemoryBytes > 0) {
+            memoryCache = CacheBuilder.newBuilder()
+                    .maximumWeight(builder.maxMemoryBytes)
+                    .<String, CachedResponse>weigher((key, response) -> response.getBody().length)
+                    .recordStats()
+                    .build();
+        } else {
+            memoryCache = null;
+        }
+
+        this.maxStale = builder.maxStaleMillis;
+        this.refreshClients = builder.refreshClients;
+        if (refreshClients != null) {
+            // bounded queue, refreshes are skipped when too many are pending
+            refresher = new ThreadPoolExecutor(builder.refreshThreads, builder.refreshThreads,
+                    1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(MAX_PENDING_REFRESHES), runnable -> {
+                Thread thread = new Thread(runnable, "WebPageFileCache-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.allowCoreThreadTimeOut(true);
+        } else {
+            refresher = null;
+        }
+
+        if (builder.segmentSize > 0) {
+            try {
+                segments = new SegmentStore(cacheDir, builder.segmentSize, this::canDrop, this::remove);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read segments from " + cacheDir, e);
+            }
+        } else {
+            segments = null;
+        }
+
+        rebuildIndex();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
 
     public HtmlPage handle(WebClient webClient, String url) throws IOException {
-        File file = new File(CACHE_DIR, stripUrl(url) + ".html");
+        return handle(webClient, url, true);
+    }
 
-        // need to load from scratch
-        //noinspection BulkFileAttributesRead - replacing with BasicFileAttributes did fail tests!
-        if(!file.exists() || file.length() == 0 || System.currentTimeMillis() - file.lastModified() > CACHE_FILE_TIMEOUT) {
-            logger.info("Loading page from " + url + ", storing in cache at " + file);
-            HtmlPage page = HtmlUnitUtils.getInitialPage(webClient, url);
-
-            if(file.exists()) {
-                if(!file.delete()) {
-                    throw new IOException("Could not remove file before updating cache: " + file);
+    private HtmlPage handle(WebClient webClient, String url, boolean allowStale) throws IOException {
+        String key = stripUrl(url);
+
+        if (memoryCache != null) {
+            CachedResponse cached = memoryCache.getIfPresent(key);
+            if (cached != null) {
+                if (!isExpired(cached.getStoredAt())) {
+                    logger.info("Loading page for " + url + " from memory");
+                    long start = System.nanoTime();
+                    HtmlPage page = replay(webClient, cached);
+                    restoreTimes.record(System.nanoTime() - start);
+                    fire(listener -> listener.hit(url, true));
+                    return page;
+                }
+
+                memoryCache.invalidate(key);
+            }
+        }
+
+        File file = new File(directoryFor(key), key + extension);
+
+        CompletableFuture<Boolean> flight = new CompletableFuture<>();
+        while (true) {
+            IndexEntry entry = lookup(key);
+            if (entry != null && !isExpired(entry.storedAt)) {
+                HtmlPage page = loadCached(webClient, url, key, file, entry);
+                if (page != null) {
+                    return page;
+                }
+            } else if (allowStale && entry != null && isStaleUsable(entry.storedAt)) {
+                // use the expired page for now and update it in the background
+                HtmlPage page = loadCached(webClient, url, key, file, entry);
+                if (page != null) {
+                    staleHits.incrementAndGet();
+                    fire(listener -> listener.staleHit(url));
+                    refreshInBackground(url, key, file);
+                    return page;
+                }
+            }
+
+            CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, flight);
+            if (existing == null) {
+                break;
+            }
+
+            // another thread is loading this page already, wait for it and then use the file
+            // which it stored, HtmlPages cannot be shared as they belong to a different WebClient
+            logger.info("Waiting for concurrent loading of page for " + url);
+            if (existing.join()) {
+                entry = lookup(key);
+                if (entry != null) {
+                    HtmlPage page = loadCached(webClient, url, key, file, entry);
+                    if (page != null) {
+                        return page;
+                    }
                 }
             }
-            page.save(file);
+        }
 
+        boolean stored = false;
+        try {
+            HtmlPage page = loadAndStore(webClient, url, key, file);
+            stored = true;
             return page;
+        } finally {
+            inFlight.remove(key, flight);
+            flight.complete(stored);
         }
+    }
 
-        // we can use the cached file
-        String fileUrl = file.toURI().toString();
-        logger.info("Loading page for " + url + " from cache at " + fileUrl);
-        return HtmlUnitUtils.getInitialPage(webClient, fileUrl);
+    /**
+     * Load the given pages into the cache, e.g. before jobs run which use them.
+     *
+     * Pages which are cached and not expired are skipped, all others are loaded
+     * concurrently with clients from an own pool which is closed afterwards. The
+     * clients do not run JavaScript and emulate {@link BrowserVersion#FIREFOX_ESR}.
+     *
+     * @param urls The pages to load
+     * @param parallelism How many pages are loaded at the same time
+     * @return The results in the order in which the pages were done, the value is
+     *      true if the page was loaded and false if it was cached already
+     */
+    public List<PageFetcher.FetchResult<Boolean>> prefetch(Collection<String> urls, int parallelism) {
+        return prefetch(urls, parallelism, result -> {});
+    }
+
+    /**
+     * Load the given pages into the cache, e.g. before jobs run which use them.
+     *
+     * Pages which are cached and not expired are skipped, all others are loaded
+     * concurrently with clients from an own pool which is closed afterwards. The
+     * clients do not run JavaScript and emulate {@link BrowserVersion#FIREFOX_ESR}.
+     *
+     * @param urls The pages to load
+     * @param parallelism How many pages are loaded at the same time
+     * @param progress Called on the calling thread whenever a page is done, failures
+     *                 are reported via {@link PageFetcher.FetchResult#exception()}
+     * @return The results in the order in which the pages were done, the value is
+     *      true if the page was loaded and false if it was cached already
+     */
+    public List<PageFetcher.FetchResult<Boolean>> prefetch(Collection<String> urls, int parallelism,
+                                                           Consumer<PageFetcher.FetchResult<Boolean>> progress) {
+        return prefetch(urls, parallelism, false, BrowserVersion.FIREFOX_ESR, progress);
+    }
+
+    /**
+     * Load the given pages into the cache, e.g. before jobs run which use them.
+     *
+     * Pages which are cached and not expired are skipped, all others are loaded
+     * concurrently with clients from an own pool which is closed afterwards.
+     * Expired pages are loaded again before the result is reported, also if they
+     * could still be served stale.
+     *
+     * @param urls The pages to load
+     * @param parallelism How many pages are loaded at the same time
+     * @param enableJavaScript If the clients should execute JavaScript
+     * @param browserVersion Which browser the clients should emulate
+     * @param progress Called on the calling thread whenever a page is done, failures
+     *                 are reported via {@link PageFetcher.FetchResult#exception()}
+     * @return The results in the order in which the pages were done, the value is
+     *      true if the page was loaded and false if it was cached already
+     */
+    public List<PageFetcher.FetchResult<Boolean>> prefetch(Collection<String> urls, int parallelism,
+                                                           boolean enableJavaScript, BrowserVersion browserVersion,
+                                                           Consumer<PageFetcher.FetchResult<Boolean>> progress) {
+        Preconditions.checkArgument(parallelism > 0, "Need a parallelism of at least 1, but had %s", parallelism);
+
+        logger.info("Prefetching " + urls.size() + " pages into cache at " + cacheDir);
+        try (WebClientPool pool = new WebClientPool(parallelism, 1, TimeUnit.MINUTES, PREFETCH_USES_PER_CLIENT)) {
+            return PageFetcher.runAll(urls, parallelism, pool, enableJavaScript, browserVersion, this::prefetch)
+                    .peek(progress)
+                    .toList();
+        }
+    }
+
+    private boolean prefetch(WebClient webClient, String url) throws IOException {
+        IndexEntry entry = lookup(stripUrl(url));
+        if (entry != null && !isExpired(entry.storedAt)) {
+            return false;
+        }
+
+        // do not report the page as loaded while only a stale copy was served
+        handle(webClient, url, false);
+        return true;
+    }
+
+    private boolean isStaleUsable(long storedAt) {
+        return refresher != null && System.currentTimeMillis() - storedAt <= cacheFileTimeout + maxStale;
+    }
+
+    private void refreshInBackground(String url, String key, File file) {
+        CompletableFuture<Boolean> flight = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, flight) != null) {
+            // already loading
+            return;
+        }
+
+        try {
+            refresher.execute(() -> {
+                boolean stored = false;
+                try (WebClient webClient = refreshClients.get()) {
+                    loadAndStore(webClient, url, key, file);
+                    stored = true;
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Could not refresh page for " + url + " in the background", e);
+                } finally {
+                    inFlight.remove(key, flight);
+                    flight.complete(stored);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // too many refreshes are queued, one of the next calls will try again
+            inFlight.remove(key, flight);
+            flight.complete(false);
+        }
+    }
+
+    private HtmlPage loadCached(WebClient webClient, String url, String key, File file, IndexEntry entry) {
+        logger.info("Loading page for " + url + " from cache at " + file);
+        try {
+            long start = System.nanoTime();
+            HtmlPage page = loadFile(webClient, url, key, file, entry.storedAt);
+            restoreTimes.record(System.nanoTime() - start);
+            fileHits.incrementAndGet();
+            fire(listener -> listener.hit(url, false));
+
+            return page;
+        } catch (IOException e) {
+            // e.g. the file was removed by someone else
+            logger.warn("Could not load page for " + url + " from cache at " + file + ", loading it again: " + e);
+            remove(key);
+            return null;
+        }
+    }
+
+    private HtmlPage loadAndStore(WebClient webClient, String url, String key, File file) throws IOException {
+        if (lookup(key) != null) {
+            // ask the server if the expired file is still up-to-date
+            HtmlPage page = revalidate(webClient, url, key, file);
+            if (page != null) {
+                return page;
+            }
+        }
+
+        // need to load from scratch
+        fileMisses.incrementAndGet();
+        fire(listener -> listener.miss(url));
+
+        logger.info("Loading page from " + url + ", storing in cache at " + file);
+        long start = System.nanoTime();
+        HtmlPage page = HtmlUnitUtils.getInitialPage(webClient, url);
+        recordLoad(url, System.nanoTime() - start);
+
+        storePage(url, key, file, page);
+
+        return page;
+    }
+
+    private HtmlPage revalidate(WebClient webClient, String url, String key, File file) throws IOException {
+        Properties validators = readValidators(key);
+        if (validators == null) {
+            return null;
+        }
+
+        WebRequest request = new WebRequest(UrlUtils.toUrlUnsafe(url));
+        String etag = validators.getProperty(ETAG);
+        if (etag != null) {
+            request.setAdditionalHeader("If-None-Match", etag);
+        }
+        String lastModified = validators.getProperty(LAST_MODIFIED);
+        if (lastModified != null) {
+            request.setAdditionalHeader("If-Modified-Since", lastModified);
+        }
+
+        logger.info("Revalidating page from " + url + " for cache at " + file);
+        long start = System.nanoTime();
+        WebResponse response = webClient.loadWebResponse(request);
+        if (response.getStatusCode() == 304) {
+            response.cleanUp();
+
+            long now = System.currentTimeMillis();
+            if (segments != null) {
+                // append the response again, its time of storing is part of the record
+                CachedResponse cached = segments.get(key);
+                if (cached != null) {
+                    segments.put(key, cached.withStoredAt(now));
+                }
+            } else if (!file.setLastModified(now)) {
+                logger.warn("Could not update timestamp of cached file at " + file);
+            }
+            touch(key, now);
+            fileRevalidations.incrementAndGet();
+            fire(listener -> listener.revalidated(url));
+
+            try {
+                start = System.nanoTime();
+                HtmlPage page = loadFile(webClient, url, key, file, now);
+                restoreTimes.record(System.nanoTime() - start);
+                return page;
+            } catch (IOException e) {
+                logger.warn("Could not load page for " + url + " from cache at " + file + ", loading it again: " + e);
+                remove(key);
+                return null;
+            }
+        }
+
+        // the page changed, use the full response which we received anyway
+        fileMisses.incrementAndGet();
+        fire(listener -> listener.miss(url));
+
+        // fail like a normal miss, loadWebResponseInto() does not check the status
+        try {
+            webClient.throwFailingHttpStatusCodeExceptionIfNecessary(response);
+        } catch (FailingHttpStatusCodeException e) {
+            response.cleanUp();
+            throw new IOException(e);
+        }
+
+        Page loaded = webClient.loadWebResponseInto(response, webClient.getCurrentWindow());
+        if (!(loaded instanceof HtmlPage)) {
+            throw new IOException("Expected a HTML page for " + url + ", but had " + loaded);
+        }
+        HtmlPage page = (HtmlPage) loaded;
+        recordLoad(url, System.nanoTime() - start);
+
+        // an error-page must not replace the cached page, e.g. if the server is temporarily failing
+        int status = response.getStatusCode();
+        if (status >= 200 && status < 300) {
+            storePage(url, key, file, page);
+        } else {
+            logger.warn("Not storing page for " + url + " in cache at " + file + " as the server responded with status " + status);
+        }
+
+        return page;
+    }
+
+    private HtmlPage loadFile(WebClient webClient, String url, String key, File file, long storedAt) throws IOException {
+        if (segments != null) {
+            return loadSegment(webClient, key);
+        }
+
+        return rawResponses ?
+                loadResponse(webClient, key, file, storedAt) :
+                loadSaved(webClient, url, key, file, storedAt);
+    }
+
+    private void recordLoad(String url, long nanos) {
+        loadTimes.record(nanos);
+        fire(listener -> listener.loaded(url, nanos));
+    }
+
+    private void storePage(String url, String key, File file, HtmlPage page) throws IOException {
+        long start = System.nanoTime();
+        writePage(key, file, page);
+
+        long nanos = System.nanoTime() - start;
+        storeTimes.record(nanos);
+        fire(listener -> listener.stored(url, nanos));
+    }
+
+    private void writePage(String key, File file, HtmlPage page) throws IOException {
+        if (segments != null) {
+            CachedResponse response = CachedResponse.of(page.getWebResponse());
+            store(key, segments.put(key, response), response.getStoredAt());
+            remember(key, response);
+            return;
+        }
+
+        FileUtils.forceMkdir(file.getParentFile());
+
+        writeValidators(key, page.getWebResponse());
+
+        if (rawResponses) {
+            // store the response as received, no need to serialize the DOM again
+            CachedResponse response = CachedResponse.of(page.getWebResponse());
+            writeResponse(file, response);
+
+            store(key, file.length(), response.getStoredAt());
+            remember(key, response);
+        } else {
+            savePage(key, file, page);
+
+            long now = System.currentTimeMillis();
+            store(key, file.length(), now);
+            remember(page.getUrl().toExternalForm(), key, page, now);
+        }
     }
 
     /**
@@ -56,11 +569,759 @@ public class WebPageFileCache {
      * @throws IllegalArgumentException if {@code directory} does not exist or is not a directory
      */
     public void clear() throws IOException {
-        FileUtils.deleteDirectory(CACHE_DIR);
+        if (memoryCache != null) {
+            memoryCache.invalidateAll();
+        }
+
+        if (segments != null) {
+            segments.clear();
+        }
+
+        synchronized (index) {
+            index.clear();
+            totalBytes = 0;
+        }
+
+        FileUtils.deleteDirectory(cacheDir);
     }
 
-    private static String stripUrl(String url) {
+    /**
+     * Release open segment files, stop refreshing pages in the background and
+     * unregister from JMX, only necessary if the cache was configured via
+     * {@link Builder#segmentSize(long)} or {@link Builder#staleWhileRevalidate(long, TimeUnit, Supplier)}
+     * or if {@link #registerMBean(String)} was used.
+     *
+     * @throws IOException If closing the files fails
+     */
+    @Override
+    public void close() throws IOException {
+        ObjectName name = mbeanName;
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                logger.warn("Could not unregister metrics of cache at " + cacheDir + " from JMX", e);
+            }
+            mbeanName = null;
+        }
+
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+
+        if (segments != null) {
+            segments.close();
+        }
+    }
+
+    /**
+     * @return The directory where cached files are stored
+     */
+    public File getDirectory() {
+        return cacheDir;
+    }
+
+    /**
+     * @return The number of bytes of the cached files as currently known by the cache
+     */
+    public long getTotalBytes() {
+        synchronized (index) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * @return Hit/miss statistics of the in-memory tier, all zero if it is not enabled
+     */
+    public TierStats getMemoryStats() {
+        if (memoryCache == null) {
+            return new TierStats(0, 0, 0);
+        }
+
+        com.google.common.cache.CacheStats stats = memoryCache.stats();
+        return new TierStats(stats.hitCount(), stats.missCount(), stats.evictionCount());
+    }
+
+    /**
+     * @return Hit/miss statistics of the files on disk, only requests
+     *      which were not answered by the in-memory tier are counted here
+     */
+    public TierStats getFileStats() {
+        return new TierStats(fileHits.get(), fileMisses.get(), fileEvictions.get());
+    }
+
+    /**
+     * @return How often an expired file was confirmed to be still
+     *      up-to-date by the server via a conditional request
+     */
+    public long getRevalidationCount() {
+        return fileRevalidations.get();
+    }
+
+    /**
+     * @return How often an expired page was returned while it was refreshed in the background
+     */
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    /**
+     * @param listener Is informed about hits, misses and durations of loading pages
+     */
+    public void addListener(Listener listener) {
+        listeners.add(Preconditions.checkNotNull(listener));
+    }
+
+    /**
+     * @param listener A listener which was added via {@link #addListener(Listener)}
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The current counters and durations of this cache
+     */
+    public Metrics getMetrics() {
+        return new Metrics(getMemoryStats(), getFileStats(), getStaleHitCount(), getRevalidationCount(), getTotalBytes(),
+                loadTimes.snapshot(), restoreTimes.snapshot(), storeTimes.snapshot());
+    }
+
+    /**
+     * Make the metrics of this cache available via JMX as
+     * "org.dstadler.htmlunit:type=WebPageFileCache,name=&lt;name&gt;", it is
+     * unregistered again when the cache is closed.
+     *
+     * @param name Distinguishes multiple caches in one JVM
+     * @return The name under which the metrics are registered
+     * @throws JMException If registering fails, e.g. because the name is used already
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("org.dstadler.htmlunit:type=WebPageFileCache,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(new MXBean(), WebPageFileCacheMXBean.class, true), objectName);
+        mbeanName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Is informed about events in the cache, called on the thread which
+     * caused the event, so implementations should return quickly.
+     */
+    public interface Listener {
+        /**
+         * @param url The page which was found
+         * @param fromMemory If it was found in the in-memory tier or in the files
+         */
+        default void hit(String url, boolean fromMemory) {
+        }
+
+        /**
+         * @param url The page which was not cached or changed on the server
+         */
+        default void miss(String url) {
+        }
+
+        /**
+         * @param url The expired page which was returned while it is refreshed in the background
+         */
+        default void staleHit(String url) {
+        }
+
+        /**
+         * @param url The expired page which the server confirmed to be still up-to-date
+         */
+        default void revalidated(String url) {
+        }
+
+        /**
+         * @param key The hashed URL of the page which was removed as the size-limit was exceeded
+         */
+        default void evicted(String key) {
+        }
+
+        /**
+         * @param url The page which was loaded from the server
+         * @param nanos How long loading and parsing took
+         */
+        default void loaded(String url, long nanos) {
+        }
+
+        /**
+         * @param url The page which was stored
+         * @param nanos How long storing took
+         */
+        default void stored(String url, long nanos) {
+        }
+    }
+
+    /**
+     * The counters and durations of the cache at one point in time.
+     *
+     * @param memory Statistics of the in-memory tier
+     * @param files Statistics of the files on disk
+     * @param staleHitCount How often an expired page was returned while it was refreshed
+     * @param revalidationCount How often an expired page was confirmed by the server
+     * @param totalBytes The size of the cached files
+     * @param loadTimes Durations of loading and parsing pages from the server
+     * @param restoreTimes Durations of reading and parsing cached pages
+     * @param storeTimes Durations of storing pages
+     */
+    public record Metrics(TierStats memory, TierStats files, long staleHitCount, long revalidationCount, long totalBytes,
+                          LatencyHistogram.Snapshot loadTimes, LatencyHistogram.Snapshot restoreTimes,
+                          LatencyHistogram.Snapshot storeTimes) {
+    }
+
+    private final class MXBean implements WebPageFileCacheMXBean {
+        @Override
+        public long getMemoryHitCount() {
+            return getMemoryStats().hitCount();
+        }
+
+        @Override
+        public long getMemoryMissCount() {
+            return getMemoryStats().missCount();
+        }
+
+        @Override
+        public long getFileHitCount() {
+            return getFileStats().hitCount();
+        }
+
+        @Override
+        public long getFileMissCount() {
+            return getFileStats().missCount();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return getFileStats().evictionCount();
+        }
+
+        @Override
+        public long getStaleHitCount() {
+            return WebPageFileCache.this.getStaleHitCount();
+        }
+
+        @Override
+        public long getRevalidationCount() {
+            return WebPageFileCache.this.getRevalidationCount();
+        }
+
+        @Override
+        public long getTotalBytes() {
+            return WebPageFileCache.this.getTotalBytes();
+        }
+
+        @Override
+        public double getLoadTimeMeanMillis() {
+            return loadTimes.snapshot().getMeanMillis();
+        }
+
+        @Override
+        public double getLoadTime99thPercentileMillis() {
+            return loadTimes.snapshot().getPercentileMillis(99);
+        }
+
+        @Override
+        public double getRestoreTimeMeanMillis() {
+            return restoreTimes.snapshot().getMeanMillis();
+        }
+
+        @Override
+        public double getRestoreTime99thPercentileMillis() {
+            return restoreTimes.snapshot().getPercentileMillis(99);
+        }
+
+        @Override
+        public double getStoreTimeMeanMillis() {
+            return storeTimes.snapshot().getMeanMillis();
+        }
+
+        @Override
+        public double getStoreTime99thPercentileMillis() {
+            return storeTimes.snapshot().getPercentileMillis(99);
+        }
+    }
+
+    private void fire(Consumer<Listener> event) {
+        for (Listener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                logger.warn("Listener " + listener + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Statistics of one tier of the cache.
+     *
+     * @param hitCount How often a page was found in this tier
+     * @param missCount How often a page was not found in this tier
+     * @param evictionCount How many entries were removed from this tier to make room for new ones
+     */
+    public record TierStats(long hitCount, long missCount, long evictionCount) {
+    }
+
+    /**
+     * Configures a {@link WebPageFileCache}, by default pages are stored in
+     * "htmlunit-cache" in the temporary directory for 20 hours without
+     * size-limit and without in-memory tier.
+     */
+    public static final class Builder {
+        private File directory = DEFAULT_CACHE_DIR;
+        private long timeoutMillis = DEFAULT_CACHE_FILE_TIMEOUT;
+        private long maxTotalBytes = Long.MAX_VALUE;
+        private long maxMemoryBytes = 0;
+        private boolean rawResponses = false;
+        private boolean compressed = false;
+        private long segmentSize = 0;
+        private long maxStaleMillis = 0;
+        private Supplier<WebClient> refreshClients = null;
+        private int refreshThreads = DEFAULT_REFRESH_THREADS;
+
+        private Builder() {
+        }
+
+        /**
+         * @param directory Where the cached files are stored
+         * @return This builder
+         */
+        public Builder directory(File directory) {
+            this.directory = Preconditions.checkNotNull(directory);
+            return this;
+        }
+
+        /**
+         * @param duration How long cached pages are used before they are fetched again
+         * @param unit The unit of duration
+         * @return This builder
+         */
+        public Builder timeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "Cannot use a negative timeout, but had %s", duration);
+            this.timeoutMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * @param maxTotalBytes The maximum size of all cached files, the least recently
+         *                      used files are removed when the size is exceeded. Resources
+         *                      which are stored alongside a page are not counted.
+         * @return This builder
+         */
+        public Builder maxTotalBytes(long maxTotalBytes) {
+            Preconditions.checkArgument(maxTotalBytes > 0, "Need a positive size-limit, but had %s", maxTotalBytes);
+            this.maxTotalBytes = maxTotalBytes;
+            return this;
+        }
+
+        /**
+         * @param maxMemoryBytes The maximum size of the bodies of the responses
+         *                       which are kept in memory, 0 disables the in-memory tier
+         * @return This builder
+         */
+        public Builder maxMemoryBytes(long maxMemoryBytes) {
+            Preconditions.checkArgument(maxMemoryBytes >= 0, "Cannot use a negative size for the in-memory tier, but had %s", maxMemoryBytes);
+            this.maxMemoryBytes = maxMemoryBytes;
+            return this;
+        }
+
+        /**
+         * @param rawResponses If true, the response is stored as it was received together with
+         *                     status, headers and URL instead of storing the result of
+         *                     {@link HtmlPage#save(File)}. This avoids serializing the page on a
+         *                     miss and keeps the original URL of the page on a hit, so
+         *                     relative links still resolve correctly.
+         * @return This builder
+         */
+        public Builder rawResponses(boolean rawResponses) {
+            this.rawResponses = rawResponses;
+            return this;
+        }
+
+        /**
+         * @param compressed If true, responses are stored gzip-compressed in sub-directories
+         *                   named after the first characters of the hashed URL, so that single
+         *                   directories do not grow too large with many cached pages. Implies
+         *                   {@link #rawResponses(boolean)}.
+         * @return This builder
+         */
+        public Builder compressed(boolean compressed) {
+            this.compressed = compressed;
+            return this;
+        }
+
+        /**
+         * @param segmentSize If larger than zero, responses are appended to segment files of
+         *                    about this size instead of storing one file per page. Hits are then
+         *                    read from memory-mapped segments, unused parts of the segments are
+         *                    compacted in the background. Implies {@link #rawResponses(boolean)},
+         *                    cannot be combined with {@link #compressed(boolean)}.
+         * @return This builder
+         */
+        public Builder segmentSize(long segmentSize) {
+            Preconditions.checkArgument(segmentSize >= 0 && segmentSize <= MAX_SEGMENT_SIZE,
+                    "Need a segment size between 0 and %s, but had %s", MAX_SEGMENT_SIZE, segmentSize);
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Return expired pages right away and refresh them in the background.
+         *
+         * @param maxStale How long after the timeout expired pages are still returned, later
+         *                 the caller waits for the page to be loaded again
+         * @param unit The unit of maxStale
+         * @param clients Provides the WebClients which are used for refreshing, each is
+         *                used for one page and closed afterwards
+         * @return This builder
+         */
+        public Builder staleWhileRevalidate(long maxStale, TimeUnit unit, Supplier<WebClient> clients) {
+            Preconditions.checkArgument(maxStale >= 0, "Cannot use a negative max-stale, but had %s", maxStale);
+            this.maxStaleMillis = unit.toMillis(maxStale);
+            this.refreshClients = Preconditions.checkNotNull(clients);
+            return this;
+        }
+
+        /**
+         * @param refreshThreads How many pages are refreshed in the background
+         *                       in parallel at most, defaults to 2
+         * @return This builder
+         */
+        public Builder refreshThreads(int refreshThreads) {
+            Preconditions.checkArgument(refreshThreads > 0, "Need at least one thread for refreshing, but had %s", refreshThreads);
+            this.refreshThreads = refreshThreads;
+            return this;
+        }
+
+        public WebPageFileCache build() {
+            Preconditions.checkState(!compressed || segmentSize == 0, "Cannot use compressed files together with segments");
+            return new WebPageFileCache(this);
+        }
+    }
+
+    private boolean isExpired(long storedAt) {
+        return System.currentTimeMillis() - storedAt > cacheFileTimeout;
+    }
+
+    // expired pages are still used while they can be served stale
+    private boolean canDrop(long storedAt) {
+        return System.currentTimeMillis() - storedAt > cacheFileTimeout + maxStale;
+    }
+
+    private IndexEntry lookup(String key) {
+        synchronized (index) {
+            return index.get(key);
+        }
+    }
+
+    private void store(String key, long size, long storedAt) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (index) {
+            IndexEntry previous = index.put(key, new IndexEntry(size, storedAt));
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+            totalBytes += size;
+
+            Iterator<Map.Entry<String, IndexEntry>> it = index.entrySet().iterator();
+            while (totalBytes > maxTotalBytes && it.hasNext()) {
+                Map.Entry<String, IndexEntry> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    // never evict the page which was just stored
+                    continue;
+                }
+
+                totalBytes -= eldest.getValue().size;
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+
+        for (String evictedKey : evicted) {
+            logger.info("Removing " + evictedKey + " from cache at " + cacheDir + " as the size-limit of " + maxTotalBytes + " bytes is exceeded");
+            fileEvictions.incrementAndGet();
+            deleteFiles(evictedKey);
+            fire(listener -> listener.evicted(evictedKey));
+        }
+    }
+
+    private void touch(String key, long storedAt) {
+        synchronized (index) {
+            IndexEntry previous = index.get(key);
+            if (previous != null) {
+                index.put(key, new IndexEntry(previous.size, storedAt));
+            }
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (index) {
+            IndexEntry previous = index.remove(key);
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+        }
+    }
+
+    private void deleteFiles(String key) {
+        if (segments != null) {
+            try {
+                segments.remove(key);
+            } catch (IOException e) {
+                logger.warn("Could not remove " + key + " from segments in " + cacheDir + ": " + e);
+            }
+            return;
+        }
+
+        File dir = directoryFor(key);
+        FileUtils.deleteQuietly(new File(dir, key + extension));
+        FileUtils.deleteQuietly(new File(dir, key + EXTENSION_VALIDATORS));
+
+        // HtmlPage.save() stores images and other resources in a directory with the same name
+        FileUtils.deleteQuietly(new File(dir, key));
+    }
+
+    private File directoryFor(String key) {
+        // spread compressed files across sub-directories to keep directories small
+        return compressed ? new File(cacheDir, key.substring(0, SHARD_LENGTH)) : cacheDir;
+    }
+
+    private void rebuildIndex() {
+        if (!cacheDir.isDirectory()) {
+            return;
+        }
+
+        List<Map.Entry<String, IndexEntry>> found = new ArrayList<>();
+        long abandoned = System.currentTimeMillis() - TEMP_FILE_MIN_AGE;
+        if (segments != null) {
+            segments.forEach((key, size, storedAt) -> found.add(Map.entry(key, new IndexEntry(size, storedAt))));
+        } else {
+            try {
+                Files.walkFileTree(cacheDir.toPath(), EnumSet.noneOf(FileVisitOption.class), compressed ? 2 : 1, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        String name = file.getFileName().toString();
+                        if (name.startsWith(TEMP_PREFIX)) {
+                            // left over from an interrupted write, unless it is still being written
+                            if (attrs.lastModifiedTime().toMillis() < abandoned) {
+                                FileUtils.deleteQuietly(file.toFile());
+                            }
+                        } else if (attrs.isRegularFile() && attrs.size() > 0 && name.endsWith(extension)) {
+                            found.add(Map.entry(name.substring(0, name.length() - extension.length()),
+                                    new IndexEntry(attrs.size(), attrs.lastModifiedTime().toMillis())));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                logger.warn("Could not read existing files from cache at " + cacheDir + ", starting with an empty cache", e);
+                return;
+            }
+        }
+
+        // oldest first, so the LRU-order starts with the files which were written longest ago
+        found.sort(Comparator.comparingLong(entry -> entry.getValue().storedAt));
+
+        synchronized (index) {
+            for (Map.Entry<String, IndexEntry> entry : found) {
+                index.put(entry.getKey(), entry.getValue());
+                totalBytes += entry.getValue().size;
+            }
+
+            logger.info("Found " + found.size() + " cached files with " + totalBytes + " bytes in cache at " + cacheDir);
+        }
+    }
+
+    private HtmlPage loadSaved(WebClient webClient, String url, String key, File file, long storedAt) throws IOException {
+        HtmlPage page = HtmlUnitUtils.getInitialPage(webClient, file.toURI().toString());
+
+        // the page was loaded from the file, but later hits from memory should see the original URL
+        remember(url, key, page, storedAt);
+
+        return page;
+    }
+
+    private HtmlPage loadSegment(WebClient webClient, String key) throws IOException {
+        CachedResponse response = segments.get(key);
+        if (response == null) {
+            throw new IOException("Response for " + key + " is not stored in the segments any more");
+        }
+
+        remember(key, response);
+
+        return replay(webClient, response);
+    }
+
+    private HtmlPage loadResponse(WebClient webClient, String key, File file, long storedAt) throws IOException {
+        if (memoryCache == null) {
+            // no need to keep the body as byte-array, larger ones are kept in a temporary file
+            return replay(webClient, CachedResponse.streamFrom(file, compressed,
+                    webClient.getOptions().getMaxInMemory(), webClient.getOptions().getTempFileDirectory()));
+        }
+
+        final CachedResponse response;
+        try (InputStream stream = CachedResponse.open(file, compressed)) {
+            response = CachedResponse.readFrom(stream, storedAt);
+        }
+
+        remember(key, response);
+
+        return replay(webClient, response);
+    }
+
+    /**
+     * Store ETag and Last-Modified of the response next to the cached file,
+     * so that the page can be revalidated with a conditional request when
+     * the cached file expires.
+     */
+    private void writeValidators(String key, WebResponse response) throws IOException {
+        File file = new File(directoryFor(key), key + EXTENSION_VALIDATORS);
+
+        Properties validators = new Properties();
+        String etag = response.getResponseHeaderValue(ETAG);
+        if (etag != null) {
+            validators.setProperty(ETAG, etag);
+        }
+        String lastModified = response.getResponseHeaderValue(LAST_MODIFIED);
+        if (lastModified != null) {
+            validators.setProperty(LAST_MODIFIED, lastModified);
+        }
+
+        if (validators.isEmpty()) {
+            FileUtils.deleteQuietly(file);
+            return;
+        }
+
+        File tempFile = File.createTempFile(TEMP_PREFIX, ".tmp", file.getParentFile());
+        try {
+            try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                validators.store(stream, "Validators for " + response.getWebRequest().getUrl());
+            }
+            moveAtomically(tempFile, file);
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    private Properties readValidators(String key) {
+        if (segments != null) {
+            // the stored response has all headers
+            return readValidators(key, segments);
+        }
+
+        File file = new File(directoryFor(key), key + EXTENSION_VALIDATORS);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Properties validators = new Properties();
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            validators.load(stream);
+        } catch (IOException e) {
+            logger.warn("Could not read validators from " + file + ": " + e);
+            return null;
+        }
+        return validators;
+    }
+
+    private static Properties readValidators(String key, SegmentStore segments) {
+        final CachedResponse response;
+        try {
+            response = segments.get(key);
+        } catch (IOException e) {
+            logger.warn("Could not read response for " + key + " from segments: " + e);
+            return null;
+        }
+        if (response == null || !response.hasValidators()) {
+            return null;
+        }
+
+        Properties validators = new Properties();
+        if (response.getHeader(ETAG) != null) {
+            validators.setProperty(ETAG, response.getHeader(ETAG));
+        }
+        if (response.getHeader(LAST_MODIFIED) != null) {
+            validators.setProperty(LAST_MODIFIED, response.getHeader(LAST_MODIFIED));
+        }
+        return validators;
+    }
+
+    private void writeResponse(File file, CachedResponse response) throws IOException {
+        File tempFile = File.createTempFile(TEMP_PREFIX, ".tmp", file.getParentFile());
+        try {
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(tempFile));
+            if (compressed) {
+                stream = new GZIPOutputStream(stream);
+            }
+            try (stream) {
+                response.writeTo(stream);
+            }
+            moveAtomically(tempFile, file);
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * HtmlPage.save() refuses to overwrite files and stores resources in a
+     * directory named after the file, so save into a temporary directory and
+     * move the results, readers then see either the old or the new file, never
+     * a partially written one.
+     */
+    private void savePage(String key, File file, HtmlPage page) throws IOException {
+        File tempDir = Files.createTempDirectory(cacheDir.toPath(), TEMP_PREFIX).toFile();
+        try {
+            File tempFile = new File(tempDir, file.getName());
+            page.save(tempFile);
+
+            File resources = new File(tempDir, key);
+            if (resources.exists()) {
+                File target = new File(cacheDir, key);
+                FileUtils.deleteQuietly(target);
+                moveAtomically(resources, target);
+            }
+
+            moveAtomically(tempFile, file);
+        } finally {
+            FileUtils.deleteQuietly(tempDir);
+        }
+    }
+
+    private static void moveAtomically(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void remember(String url, String key, HtmlPage page, long storedAt) throws IOException {
+        if (memoryCache != null) {
+            memoryCache.put(key, CachedResponse.of(page.getWebResponse()).withUrl(url).withStoredAt(storedAt));
+        }
+    }
+
+    private void remember(String key, CachedResponse response) {
+        if (memoryCache != null) {
+            memoryCache.put(key, response);
+        }
+    }
+
+    private static HtmlPage replay(WebClient webClient, CachedResponse cached) throws IOException {
+        return replay(webClient, cached.toWebResponse());
+    }
+
+    private static HtmlPage replay(WebClient webClient, WebResponse response) throws IOException {
+        Page page = webClient.loadWebResponseInto(response, webClient.getCurrentWindow());
+        if (!(page instanceof HtmlPage)) {
+            throw new IOException("Expected a HTML page for " + response.getWebRequest().getUrl() + ", but had " + page);
+        }
+        return (HtmlPage) page;
+    }
+
+    static String stripUrl(String url) {
         // use hashing to avoid filenames becoming too long or containing special characters
         return Hashing.murmur3_128().hashString(url, StandardCharsets.UTF_8).toString();
     }
+
+    private record IndexEntry(long size, long storedAt) {
+    }
 }
@@ -0,0 +1,35 @@
+package org.dstadler.htmlunit;
+
+/**
+ * Exposes the metrics of a {@link WebPageFileCache} via JMX,
+ * see {@link WebPageFileCache#registerMBean(String)}.
+ */
+public interface WebPageFileCacheMXBean {
+    long getMemoryHitCount();
+
+    long getMemoryMissCount();
+
+    long getFileHitCount();
+
+    long getFileMissCount();
+
+    long getEvictionCount();
+
+    long getStaleHitCount();
+
+    long getRevalidationCount();
+
+    long getTotalBytes();
+
+    double getLoadTimeMeanMillis();
+
+    double getLoadTime99thPercentileMillis();
+
+    double getRestoreTimeMeanMillis();
+
+    double getRestoreTime99thPercentileMillis();
+
+    double getStoreTimeMeanMillis();
+
+    double getStoreTime99thPercentileMillis();
+}
@@ -0,0 +1,108 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.SocketUtils;
+import org.htmlunit.ProxyConfig;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlPage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BlockingWebConnectionTest {
+    private static final String HTML = "<html><head><title>Page</title><script src=\"/script.js\"></script></head>" +
+            "<body>Ok</body></html>";
+
+    @Test
+    public void testDenyPath() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = createServer(port, requests);
+        try {
+            BlockingWebConnection connection = fetch(port, "Page",
+                    builder -> builder.denyPath(Pattern.compile("\\.js$")));
+            assertEquals(1, requests.get(), "The script should not be fetched");
+            assertEquals(1, connection.getPassedCount());
+            assertEquals(1, connection.getBlockedCount());
+            assertEquals(Map.of("localhost", 1L), connection.getBlockedCountByHost());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDenyContentType() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = createServer(port, requests);
+        try {
+            BlockingWebConnection connection = fetch(port, "Page",
+                    builder -> builder.denyContentType("text/javascript"));
+            assertEquals(2, requests.get(), "The script is fetched, but not executed");
+            assertEquals(1, connection.getBlockedCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAllowHost() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = createServer(port, requests);
+        try {
+            BlockingWebConnection connection = fetch(port, "Script",
+                    builder -> builder.skipResources().denyHost("localhost").allowHost("localhost"));
+            assertEquals(2, requests.get());
+            assertEquals(2, connection.getPassedCount());
+            assertEquals(0, connection.getBlockedCount());
+            assertEquals(Map.of(), connection.getBlockedCountByHost());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBuilderInvalid() {
+        BlockingWebConnection.Builder builder = BlockingWebConnection.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.denyHost(""));
+        assertThrows(IllegalArgumentException.class, () -> builder.allowHost(null));
+        assertThrows(IllegalArgumentException.class, () -> builder.denyContentType(""));
+        assertThrows(NullPointerException.class, () -> builder.denyPath(null));
+    }
+
+    private static NanoHTTPD createServer(int port, AtomicInteger requests) throws IOException {
+        return new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                return new Response(HTTP_OK, uri.endsWith(".js") ? "text/javascript" : MIME_HTML,
+                        uri.endsWith(".js") ? "document.title = 'Script';" : HTML);
+            }
+        };
+    }
+
+    private static BlockingWebConnection fetch(int port, String expectedTitle, Consumer<BlockingWebConnection.Builder> config) throws IOException {
+        try (WebClient client = HtmlUnitUtils.createWebClient(true)) {
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+
+            BlockingWebConnection.Builder builder = BlockingWebConnection.builder();
+            config.accept(builder);
+            BlockingWebConnection connection = builder.install(client);
+
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + port + "/page");
+            assertEquals(expectedTitle, page.getTitleText());
+
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.SocketUtils;
+import org.htmlunit.ProxyConfig;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class CachingWebConnectionTest {
+    private static final String HTML = "<html><head><script src=\"/script.js\"></script></head><body>Ok</body></html>";
+
+    @Test
+    public void testMaxAge(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                Response response = new Response(HTTP_OK, uri.endsWith(".js") ? "text/javascript" : MIME_HTML,
+                        uri.endsWith(".js") ? "var a = 1;" : HTML);
+                response.addHeader("Cache-Control", "max-age=3600");
+                return response;
+            }
+        };
+        try {
+            fetch(port, tempDir);
+            assertEquals(2, requests.get(), "Page and script should be fetched");
+
+            // the page and the script are now served from the cache
+            CachingWebConnection connection = fetch(port, tempDir);
+            assertEquals(2, requests.get(), "Page and script should be taken from the cache");
+            assertEquals(2, connection.getHitCount());
+            assertEquals(0, connection.getMissCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRevalidate(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger conditional = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                if ("\"v1\"".equals(getHeader(header, "If-None-Match"))) {
+                    conditional.incrementAndGet();
+                    return new Response("304 Not Modified", MIME_HTML, "");
+                }
+
+                Response response = new Response(HTTP_OK, MIME_HTML, "<html><body>Ok</body></html>");
+                response.addHeader("Cache-Control", "no-cache");
+                response.addHeader("ETag", "\"v1\"");
+                return response;
+            }
+        };
+        try {
+            fetch(port, tempDir);
+            assertEquals(1, requests.get());
+
+            CachingWebConnection connection = fetch(port, tempDir);
+            assertEquals(2, requests.get(), "Should revalidate the page");
+            assertEquals(1, conditional.get(), "Should send a conditional request");
+            assertEquals(1, connection.getRevalidationCount());
+            assertEquals(0, connection.getMissCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRevalidateUpdatesHeaders(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger conditional = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                if ("\"v1\"".equals(getHeader(header, "If-None-Match"))) {
+                    conditional.incrementAndGet();
+
+                    // the page can now be used without asking again
+                    Response response = new Response("304 Not Modified", MIME_HTML, "");
+                    response.addHeader("Cache-Control", "max-age=3600");
+                    response.addHeader("ETag", "\"v1\"");
+                    return response;
+                }
+
+                Response response = new Response(HTTP_OK, MIME_HTML, "<html><body>Ok</body></html>");
+                response.addHeader("Cache-Control", "no-cache");
+                response.addHeader("ETag", "\"v1\"");
+                return response;
+            }
+        };
+        try {
+            fetch(port, tempDir);
+            assertEquals(1, requests.get());
+
+            CachingWebConnection connection = fetch(port, tempDir);
+            assertEquals(2, requests.get(), "Should revalidate the page");
+            assertEquals(1, connection.getRevalidationCount());
+
+            // the max-age of the 304-response was stored
+            connection = fetch(port, tempDir);
+            assertEquals(2, requests.get(), "Should use the page without asking the server");
+            assertEquals(1, conditional.get());
+            assertEquals(1, connection.getHitCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testVary(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                Response response = new Response(HTTP_OK, MIME_HTML, "<html><body>Ok</body></html>");
+                response.addHeader("Cache-Control", "max-age=3600");
+                response.addHeader("Vary", uri.endsWith("encoding") ? "Accept-Encoding" : "Accept-Encoding, Cookie");
+                return response;
+            }
+        };
+        try {
+            fetch(port, tempDir);
+            CachingWebConnection connection = fetch(port, tempDir);
+            assertEquals(2, requests.get(), "Should not cache responses which vary by request headers");
+            assertEquals(1, connection.getMissCount());
+
+            // the body is stored decoded, so varying by encoding does not matter
+            fetch(port, tempDir, "/encoding");
+            connection = fetch(port, tempDir, "/encoding");
+            assertEquals(3, requests.get(), "Should cache responses which only vary by encoding");
+            assertEquals(1, connection.getHitCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNoStore(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                Response response = new Response(HTTP_OK, MIME_HTML, "<html><body>Ok</body></html>");
+                response.addHeader("Cache-Control", "no-store, max-age=3600");
+                return response;
+            }
+        };
+        try {
+            fetch(port, tempDir);
+            CachingWebConnection connection = fetch(port, tempDir);
+            assertEquals(2, requests.get(), "Should not cache responses with no-store");
+            assertEquals(1, connection.getMissCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testGzip(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                try {
+                    Response response = new Response(HTTP_OK, uri.endsWith(".js") ? "text/javascript" : MIME_HTML,
+                            new ByteArrayInputStream(gzip(uri.endsWith(".js") ? "var a = 1;" : HTML)));
+                    response.addHeader("Content-Encoding", "gzip");
+                    response.addHeader("Cache-Control", "max-age=3600");
+                    return response;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        try {
+            fetch(port, tempDir);
+            assertEquals(2, requests.get());
+
+            // the stored body is decoded already, it must not be decoded again
+            CachingWebConnection connection = fetch(port, tempDir);
+            assertEquals(2, requests.get(), "Page and script should be taken from the cache");
+            assertEquals(2, connection.getHitCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    static byte[] gzip(String str) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream stream = new GZIPOutputStream(bytes)) {
+            stream.write(str.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static CachingWebConnection fetch(int port, File dir) throws IOException {
+        return fetch(port, dir, "/page");
+    }
+
+    private static CachingWebConnection fetch(int port, File dir, String path) throws IOException {
+        // use a new client each time to not use the in-memory cache of HtmlUnit
+        try (WebClient client = HtmlUnitUtils.createWebClient(true)) {
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+
+            CachingWebConnection connection = new CachingWebConnection(client, dir);
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + port + path);
+            assertNotNull(page);
+            assertEquals("Ok", page.getBody().asNormalizedText());
+
+            return connection;
+        }
+    }
+
+    private static String getHeader(Properties header, String name) {
+        for (String key : header.stringPropertyNames()) {
+            if (key.equalsIgnoreCase(name)) {
+                return header.getProperty(key);
+            }
+        }
+        return null;
+    }
+}
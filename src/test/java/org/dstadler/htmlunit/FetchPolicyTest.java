@@ -0,0 +1,249 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.SocketUtils;
+import org.htmlunit.BrowserVersion;
+import org.htmlunit.ProxyConfig;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlPage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FetchPolicyTest {
+    @Test
+    public void testRetry() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = createServer(port, requests, 2, "503 Service Unavailable");
+        try (WebClient client = createClient()) {
+            FetchPolicy policy = fast().maxRetries(3).build();
+
+            HtmlPage page = policy.load(client, "http://localhost:" + port);
+            assertEquals("Ok", page.getTitleText());
+            assertEquals(3, requests.get());
+            assertEquals(2, policy.getRetryCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRetriesExhausted() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = createServer(port, requests, Integer.MAX_VALUE, "429 Too Many Requests");
+        try (WebClient client = createClient()) {
+            FetchPolicy policy = fast().maxRetries(2).build();
+
+            assertThrows(IOException.class, () -> policy.load(client, "http://localhost:" + port));
+            assertEquals(3, requests.get());
+            assertEquals(2, policy.getRetryCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNotRetried() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = createServer(port, requests, Integer.MAX_VALUE, NanoHTTPD.HTTP_NOTFOUND);
+        try (WebClient client = createClient()) {
+            FetchPolicy policy = fast().maxRetries(3).build();
+
+            assertThrows(IOException.class, () -> policy.load(client, "http://localhost:" + port));
+            assertEquals(1, requests.get());
+            assertEquals(0, policy.getRetryCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRetryAfterTooLong() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                Response response = new Response("429 Too Many Requests", MIME_HTML, "<html><body>Failure</body></html>");
+                response.addHeader("Retry-After", "3600");
+                return response;
+            }
+        };
+        try (WebClient client = createClient()) {
+            FetchPolicy policy = fast().maxRetries(3).build();
+
+            IOException e = assertThrows(IOException.class, () -> policy.load(client, "http://localhost:" + port));
+            assertTrue(e.getMessage().contains("3600"), "Had: " + e.getMessage());
+            assertEquals(1, requests.get());
+            assertEquals(0, policy.getRetryCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNotHtml() throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_OK, MIME_PLAINTEXT, "Ok");
+            }
+        };
+        try (WebClient client = createClient()) {
+            FetchPolicy policy = fast().build();
+
+            IOException e = assertThrows(IOException.class, () -> policy.load(client, "http://localhost:" + port));
+            assertTrue(e.getMessage().contains("Expected a HTML page"), "Had: " + e.getMessage());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMaxConcurrentPerHost() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+                return new Response(HTTP_OK, MIME_HTML, "<html><head><title>Ok</title></head></html>");
+            }
+        };
+        try (WebClientPool pool = new WebClientPool()) {
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                urls.add("http://localhost:" + port + "/page" + i);
+            }
+
+            FetchPolicy policy = fast().maxConcurrentPerHost(2).build();
+            long count = PageFetcher.fetchAll(urls, 6, pool, false, BrowserVersion.FIREFOX_ESR, policy, HtmlPage::getTitleText)
+                    .filter(PageFetcher.FetchResult::isSuccess)
+                    .count();
+
+            assertEquals(6, count);
+            assertTrue(maxRunning.get() <= 2, "Had: " + maxRunning.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRetryReleasesSlot() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                if (uri.startsWith("/busy") && requests.incrementAndGet() == 1) {
+                    Response response = new Response("503 Service Unavailable", MIME_HTML, "<html><body>Failure</body></html>");
+                    response.addHeader("Retry-After", "1");
+                    return response;
+                }
+                return new Response(HTTP_OK, MIME_HTML, "<html><head><title>Ok</title></head></html>");
+            }
+        };
+        try (WebClientPool pool = new WebClientPool()) {
+            FetchPolicy policy = FetchPolicy.builder()
+                    .backoff(Duration.ofMillis(1), Duration.ofSeconds(5))
+                    .build();
+
+            // with only one slot, the other page is fetched while the busy one waits for its retry
+            List<String> done = PageFetcher.fetchAll(List.of("http://localhost:" + port + "/busy", "http://127.0.0.1:" + port + "/other"),
+                            1, pool, false, BrowserVersion.FIREFOX_ESR, policy, HtmlPage::getTitleText)
+                    .map(PageFetcher.FetchResult::url)
+                    .toList();
+
+            assertEquals(List.of("http://127.0.0.1:" + port + "/other", "http://localhost:" + port + "/busy"), done);
+            assertEquals(1, policy.getRetryCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBackoff() {
+        FetchPolicy policy = FetchPolicy.builder()
+                .backoff(Duration.ofMillis(100), Duration.ofSeconds(2))
+                .build();
+
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.backoffMillis(0, null);
+            assertTrue(delay >= 50 && delay <= 100, "Had: " + delay);
+
+            delay = policy.backoffMillis(2, null);
+            assertTrue(delay >= 200 && delay <= 400, "Had: " + delay);
+
+            assertTrue(policy.backoffMillis(20, null) <= 2000);
+        }
+
+        // Retry-After is honoured, but not retried at all if it is longer than the maximum backoff
+        assertEquals(1000, policy.backoffMillis(0, "1"));
+        assertEquals(2000, policy.backoffMillis(0, "2"));
+        assertEquals(-1, policy.backoffMillis(0, "3600"));
+        assertEquals(-1, policy.backoffMillis(0, "Thu, 01 Jan 2099 00:00:00 GMT"));
+        assertTrue(policy.backoffMillis(0, "invalid") <= 100);
+    }
+
+    @Test
+    public void testBuilderInvalid() {
+        FetchPolicy.Builder builder = FetchPolicy.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.maxRetries(-1));
+        assertThrows(IllegalArgumentException.class, () -> builder.backoff(Duration.ZERO, Duration.ofSeconds(1)));
+        assertThrows(IllegalArgumentException.class, () -> builder.backoff(Duration.ofSeconds(2), Duration.ofSeconds(1)));
+        assertThrows(IllegalArgumentException.class, () -> builder.maxConcurrentPerHost(-1));
+        assertThrows(NullPointerException.class, () -> builder.retryStatus(null));
+
+        // an empty set disables retries on status codes
+        builder.retryStatus(Set.of()).build();
+    }
+
+    private static NanoHTTPD createServer(int port, AtomicInteger requests, int failures, String failureStatus) throws IOException {
+        return new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                if (requests.incrementAndGet() <= failures) {
+                    Response response = new Response(failureStatus, MIME_HTML, "<html><body>Failure</body></html>");
+                    response.addHeader("Retry-After", "0");
+                    return response;
+                }
+                return new Response(HTTP_OK, MIME_HTML, "<html><head><title>Ok</title></head></html>");
+            }
+        };
+    }
+
+    private static FetchPolicy.Builder fast() {
+        return FetchPolicy.builder().backoff(Duration.ofMillis(1), Duration.ofMillis(20));
+    }
+
+    private static WebClient createClient() {
+        WebClient client = HtmlUnitUtils.createWebClient(false);
+
+        // set empty proxy for localhost
+        client.getOptions().setProxyConfig(new ProxyConfig());
+        return client;
+    }
+}
@@ -2,7 +2,12 @@ package org.dstadler.htmlunit;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HtmlUnitExceptionTest {
 
@@ -13,4 +18,20 @@ public class HtmlUnitExceptionTest {
         assertNotNull(test);
         assertNotNull(test.getMessage());
     }
+
+    @Test
+    public void testWithCause() {
+        HtmlUnitException test = new HtmlUnitException("teststring", new IOException());
+        assertNotNull(test.getMessage());
+        assertTrue(test.getCause() instanceof IOException);
+    }
+
+    @Test
+    public void testDump() {
+        HtmlUnitException test = new HtmlUnitException("teststring");
+        assertNull(test.getDump());
+
+        test.setDump(() -> "contents");
+        assertEquals("contents", test.getDump());
+    }
 }
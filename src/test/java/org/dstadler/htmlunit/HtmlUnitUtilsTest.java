@@ -18,6 +18,7 @@ import org.junit.jupiter.params.provider.MethodSource;
 
 import java.io.IOException;
 import java.net.URL;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -366,6 +367,179 @@ public class HtmlUnitUtilsTest {
         verifier.addObject(server);
     }
 
+    @MethodSource("data")
+    @ParameterizedTest(name = "Debug-Log: {0}")
+    public void testDumpMode(Boolean enableJavascript) throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_OK, MIME_HTML, "<html><body>" +
+                        "<div id=\"testid\">" + "x".repeat(1000) + "</div>" +
+                        "</body></html>");
+            }
+        };
+        try (WebClient client = HtmlUnitUtils.createWebClient(enableJavascript)) {
+            verifier.addObject(client);
+
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + port);
+
+            HtmlUnitException e = assertThrows(NoElementFoundException.class,
+                    () -> HtmlUnitUtils.getElementById(page, "notexisting", HtmlDivision.class));
+            assertNull(e.getDump(), "Only logged by default");
+
+            HtmlUnitUtils.setDumpMode(client, HtmlUnitUtils.DumpMode.ATTACH, 100);
+            e = assertThrows(NoElementFoundException.class,
+                    () -> HtmlUnitUtils.getElementById(page, "notexisting", HtmlDivision.class));
+            String dump = e.getDump();
+            TestHelpers.assertContains(dump, "Page contents (http://localhost:" + port, "testid", "more characters not shown");
+            assertTrue(dump.length() < 300, "Had: " + dump);
+
+            // other clients are not affected
+            try (WebClient other = HtmlUnitUtils.createWebClient(enableJavascript)) {
+                other.getOptions().setProxyConfig(new ProxyConfig());
+
+                HtmlPage otherPage = HtmlUnitUtils.getInitialPage(other, "http://localhost:" + port);
+                assertNull(assertThrows(NoElementFoundException.class,
+                        () -> HtmlUnitUtils.getElementById(otherPage, "notexisting", HtmlDivision.class)).getDump());
+            }
+
+            HtmlUnitUtils.setDumpMode(client, HtmlUnitUtils.DumpMode.NONE, 100);
+            e = assertThrows(NoElementFoundException.class,
+                    () -> HtmlUnitUtils.getElementById(page, "notexisting", HtmlDivision.class));
+            assertNull(e.getDump());
+
+            assertThrows(IllegalArgumentException.class,
+                    () -> HtmlUnitUtils.setDumpMode(client, HtmlUnitUtils.DumpMode.LOG, 0));
+
+            verifier.addObject(page);
+        } finally {
+            server.stop();
+        }
+
+        verifier.addObject(server);
+    }
+
+    @MethodSource("data")
+    @ParameterizedTest(name = "Debug-Log: {0}")
+    public void testQuerySelectorAndXPath(Boolean enableJavascript) throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_OK, MIME_HTML, "<html><body>" +
+                        "<div class=\"item\" id=\"first\">one</div>" +
+                        "<div><span class=\"item\">two</span></div>" +
+                        "<div class=\"item other\">three</div>" +
+                        "<a href=\"#\" class=\"link\">link</a>" +
+                        "</body></html>");
+            }
+        };
+        try (WebClient client = HtmlUnitUtils.createWebClient(enableJavascript)) {
+            verifier.addObject(client);
+
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + port);
+
+            List<HtmlDivision> divs = HtmlUnitUtils.querySelectorAll(page, "div.item", HtmlDivision.class);
+            assertEquals(2, divs.size());
+            assertEquals("one", divs.get(0).getTextContent());
+            assertEquals("three", divs.get(1).getTextContent());
+
+            // cached selectors give the same result
+            assertEquals(2, HtmlUnitUtils.querySelectorAll(page, "div.item", HtmlDivision.class).size());
+
+            assertEquals(3, HtmlUnitUtils.querySelectorAll(page, ".item", HtmlElement.class).size());
+            assertEquals(0, HtmlUnitUtils.querySelectorAll(page, "div.missing", HtmlDivision.class).size());
+            assertEquals("two", HtmlUnitUtils.querySelector(page, "div > span.item", HtmlSpan.class).getTextContent());
+            assertEquals("one", HtmlUnitUtils.querySelector(page, "#first, .other", HtmlDivision.class).getTextContent());
+
+            assertThrows(WrongElementException.class,
+                    () -> HtmlUnitUtils.querySelectorAll(page, ".item", HtmlDivision.class));
+            assertThrows(NoElementFoundException.class,
+                    () -> HtmlUnitUtils.querySelector(page, "div.missing", HtmlDivision.class));
+            assertThrows(HtmlUnitException.class,
+                    () -> HtmlUnitUtils.querySelectorAll(page, "div[", HtmlDivision.class));
+
+            List<HtmlDivision> xpathDivs = HtmlUnitUtils.getByXPath(page, "//div[contains(@class, 'item')]", HtmlDivision.class);
+            assertEquals(2, xpathDivs.size());
+            assertEquals("three", xpathDivs.get(1).getTextContent());
+
+            assertEquals(1, HtmlUnitUtils.getByXPath(page, "//a", HtmlAnchor.class).size());
+            assertThrows(WrongElementException.class,
+                    () -> HtmlUnitUtils.getByXPath(page, "//*[@class='item']", HtmlDivision.class));
+            assertThrows(WrongElementException.class,
+                    () -> HtmlUnitUtils.getByXPath(page, "//a/@href", HtmlAnchor.class));
+
+            verifier.addObject(page);
+        } finally {
+            server.stop();
+        }
+
+        verifier.addObject(server);
+    }
+
+    @MethodSource("data")
+    @ParameterizedTest(name = "Debug-Log: {0}")
+    public void testGetFormElementNested(Boolean enableJavascript) throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_OK, MIME_HTML, "<html><body>" +
+                        "<form name=\"testform\" action=\"do\">" +
+                            "<div><div><table><tr><td>" +
+                                "<input type=\"text\" name=\"deep\" value=\"value1\"/>" +
+                            "</td></tr></table></div></div>" +
+                            "<script>var a = '<input type=\"text\" name=\"deep\"/>';</script>" +
+                            "<style>input { color: red; }</style>" +
+                            "<div><span><input type=\"text\" name=\"duplicate\"/></span></div>" +
+                            "<input type=\"text\" name=\"duplicate\"/>" +
+                            "<div><input type=\"submit\" name=\"after\"/></div>" +
+                        "</form>" +
+                        "<input type=\"submit\" name=\"outside\"/>" +
+                        "</body></html>");
+            }
+        };
+        try (WebClient client = HtmlUnitUtils.createWebClient(enableJavascript)) {
+            verifier.addObject(client);
+
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + port);
+
+            HtmlForm form = HtmlUnitUtils.getFormByAction(page, "do");
+            assertNotNull(form);
+
+            assertEquals("value1", HtmlUnitUtils.getFormElementByName(form, "deep", HtmlTextInput.class).getText());
+            assertEquals("value1", HtmlUnitUtils.getFormElementByNameAndValue(form, "deep", "value1", HtmlTextInput.class).getText());
+
+            // elements after nested ones are found, elements after the form are not
+            assertEquals("after", HtmlUnitUtils.getFormElementByType(form, HtmlSubmitInput.class).getNameAttribute());
+            assertEquals("after", HtmlUnitUtils.getFormElementByType(page, "testform", HtmlSubmitInput.class).getNameAttribute());
+
+            TestHelpers.assertContains(
+                    assertThrows(HtmlUnitException.class,
+                            () -> HtmlUnitUtils.getFormElementByName(form, "duplicate", HtmlTextInput.class)),
+                    "Did find more than one element", "duplicate");
+
+            verifier.addObject(page);
+        } finally {
+            server.stop();
+        }
+
+        verifier.addObject(server);
+    }
+
     @MethodSource("data")
     @ParameterizedTest(name = "Debug-Log: {0}")
     public void testGetFormElementByNameAndValue(Boolean enableJavascript) throws Exception {
@@ -615,6 +789,38 @@ public class HtmlUnitUtilsTest {
         }
     }
 
+    @MethodSource("data")
+    @ParameterizedTest(name = "Debug-Log: {0}")
+    public void testWaitForTextDuration(Boolean enableJavascript) throws Exception {
+        try (WebClient webClient = HtmlUnitUtils.createWebClient(true)) {
+            verifier.addObject(webClient);
+
+            try (MockRESTServer server = new MockRESTServer(() -> new NanoHTTPD.Response(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML,
+                        // change the text of an existing node after 200ms
+                        "<html><body><span id=\"text\">Waiting</span>" +
+                        "<script>" +
+                        "setTimeout(function() {" +
+                        "  document.getElementById('text').firstChild.data = 'Changed' + 'Text';" +
+                        "}, 200);" +
+                        "</script>" +
+                        "</body></html>"))) {
+                verifier.addObject(server);
+                SgmlPage page = webClient.getPage("http://localhost:" + server.getPort());
+
+                // found immediately
+                Duration duration = HtmlUnitUtils.waitForText(page, "Waiting", Duration.ofSeconds(5));
+                assertTrue(duration.toMillis() < 5000, "Had: " + duration);
+
+                // found when the text is changed
+                duration = HtmlUnitUtils.waitForText(page, "ChangedText", Duration.ofSeconds(5));
+                assertTrue(duration.toMillis() < 5000, "Had: " + duration);
+
+                assertThrows(IllegalStateException.class,
+                        () -> HtmlUnitUtils.waitForText(page, "Not found", Duration.ofMillis(100)));
+            }
+        }
+    }
+
     @MethodSource("data")
     @ParameterizedTest(name = "Debug-Log: {0}")
     public void testCreate(Boolean enableJavascript) {
@@ -633,4 +839,32 @@ public class HtmlUnitUtilsTest {
             HtmlUnitUtils.waitForJavascript(webClient, 1000);
         }
     }
+
+    @MethodSource("data")
+    @ParameterizedTest(name = "Debug-Log: {0}")
+    public void testWaitForJavaScriptIgnorePeriodic(Boolean enableJavascript) throws Exception {
+        try (WebClient webClient = HtmlUnitUtils.createWebClient(true)) {
+            verifier.addObject(webClient);
+
+            try (MockRESTServer server = new MockRESTServer(() -> new NanoHTTPD.Response(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML,
+                        "<html><body>" +
+                        "<script>" +
+                        "setInterval(function() {}, 5000);" +
+                        "setTimeout(function() {}, 100);" +
+                        "</script>" +
+                        "</body></html>"))) {
+                verifier.addObject(server);
+                webClient.getPage("http://localhost:" + server.getPort());
+
+                // the interval-timer is never finished
+                assertTrue(HtmlUnitUtils.waitForJavascript(webClient, Duration.ofMillis(300), Duration.ofDays(1)) > 0);
+
+                // but can be ignored
+                long start = System.currentTimeMillis();
+                assertEquals(0, HtmlUnitUtils.waitForJavascript(webClient, Duration.ofSeconds(10), Duration.ofSeconds(1)));
+                assertTrue(System.currentTimeMillis() - start < 5000,
+                        "Should not wait for the periodic job, but took " + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+    }
 }
@@ -0,0 +1,39 @@
+package org.dstadler.htmlunit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testEmpty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.count());
+        assertEquals(0, snapshot.getMeanMillis());
+        assertEquals(0, snapshot.getPercentileMillis(99));
+    }
+
+    @Test
+    public void testRecord() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1000));
+        histogram.record(-1);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(101, snapshot.count());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), snapshot.maxNanos());
+        assertEquals(1099.0 / 101, snapshot.getMeanMillis(), 0.001);
+
+        // 1ms is counted in the bucket up to 1.024ms
+        double median = snapshot.getPercentileMillis(50);
+        assertTrue(median >= 1 && median <= 1.024, "Had " + median);
+        assertTrue(snapshot.getPercentileMillis(99) <= 1.024, "Had " + snapshot.getPercentileMillis(99));
+        assertEquals(1000, snapshot.getPercentileMillis(100), 0.001);
+    }
+}
@@ -0,0 +1,105 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.testing.MockRESTServer;
+import org.htmlunit.BrowserVersion;
+import org.htmlunit.html.HtmlElement;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PageFetcherTest {
+    @Test
+    public void testFetchAll() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML,
+                "<html><head><title>title1</title></head><body>Ok</body></html>");
+             MockRESTServer failing = new MockRESTServer(NanoHTTPD.HTTP_INTERNALERROR, NanoHTTPD.MIME_HTML, "<html></html>")) {
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                urls.add("http://localhost:" + server.getPort() + "/page" + i);
+            }
+            urls.add("http://localhost:" + failing.getPort() + "/failing");
+
+            List<PageFetcher.FetchResult<String>> results = PageFetcher.fetchAll(urls, 3,
+                    () -> HtmlUnitUtils.createWebClient(false), page -> page.getTitleText()).collect(Collectors.toList());
+
+            assertEquals(11, results.size());
+            for (PageFetcher.FetchResult<String> result : results) {
+                if (result.url().contains("failing")) {
+                    assertFalse(result.isSuccess());
+                    assertNull(result.value());
+                    assertNotNull(result.exception());
+                    assertThrows(HtmlUnitException.class, result::getOrThrow);
+                } else {
+                    assertTrue(result.isSuccess(), "Had: " + result.exception());
+                    assertEquals("title1", result.getOrThrow());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFetchAllWithPool() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML,
+                "<html><head><title>title1</title></head><body>Ok</body></html>");
+             WebClientPool pool = new WebClientPool()) {
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                urls.add("http://localhost:" + server.getPort() + "/page" + i);
+            }
+
+            long count = PageFetcher.fetchAll(urls, 2, pool, false, BrowserVersion.FIREFOX_ESR, page -> page.getTitleText())
+                    .filter(PageFetcher.FetchResult::isSuccess)
+                    .count();
+            assertEquals(5, count);
+            assertTrue(pool.getIdleCount() <= 2, "Had: " + pool.getIdleCount());
+        }
+    }
+
+    @Test
+    public void testHandlerFails() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML, "<html><body>Ok</body></html>")) {
+            List<PageFetcher.FetchResult<HtmlElement>> results = PageFetcher.fetchAll(List.of("http://localhost:" + server.getPort()), 1,
+                    () -> HtmlUnitUtils.createWebClient(false),
+                    page -> HtmlUnitUtils.getElementById(page, "notexisting", HtmlElement.class))
+                    .collect(Collectors.toList());
+
+            assertEquals(1, results.size());
+            assertTrue(results.getFirst().exception() instanceof NoElementFoundException);
+        }
+    }
+
+    @Test
+    public void testHandlerThrowsError() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML, "<html><body>Ok</body></html>")) {
+            List<PageFetcher.FetchResult<String>> results = PageFetcher.fetchAll(
+                    List.of("http://localhost:" + server.getPort() + "/1", "http://localhost:" + server.getPort() + "/2"), 1,
+                    () -> HtmlUnitUtils.createWebClient(false),
+                    page -> {
+                        throw new AssertionError("Failing handler");
+                    })
+                    .collect(Collectors.toList());
+
+            // each URL still has a result, the stream does not block
+            assertEquals(2, results.size());
+            assertTrue(results.getFirst().exception().getCause() instanceof AssertionError);
+        }
+    }
+
+    @Test
+    public void testEmptyAndInvalid() {
+        assertEquals(0, PageFetcher.fetchAll(List.of(), 1, () -> HtmlUnitUtils.createWebClient(false), page -> page).count());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> PageFetcher.fetchAll(List.of(), 0, () -> HtmlUnitUtils.createWebClient(false), page -> page));
+    }
+}
@@ -0,0 +1,151 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.testing.MemoryLeakVerifier;
+import org.dstadler.commons.testing.MockRESTServer;
+import org.dstadler.commons.testing.TestHelpers;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.DomElement;
+import org.htmlunit.html.HtmlElement;
+import org.htmlunit.html.HtmlForm;
+import org.htmlunit.html.HtmlImage;
+import org.htmlunit.html.HtmlPage;
+import org.htmlunit.html.HtmlTextInput;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PageIndexTest {
+    private static final String HTML = "<html><body>" +
+            "<img src=\"blabla\" id=\"testid\"/>" +
+            "<img src=\"blabla\" name=\"testname\"/>" +
+            "<img src=\"blabla2\" class=\"some testclass other\"/>" +
+            "<form name=\"testform\"><input type=\"text\"/><input type=\"text\"/><input type=\"image\"/>bla text1 bla</form>" +
+            "</body></html>";
+
+    private final MemoryLeakVerifier verifier = new MemoryLeakVerifier();
+
+    @AfterEach
+    public void tearDown() {
+        verifier.assertGarbageCollected();
+    }
+
+    @Test
+    public void testLookups() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML, HTML);
+             WebClient client = HtmlUnitUtils.createWebClient(false)) {
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + server.getPort());
+
+            try (PageIndex index = new PageIndex(page)) {
+                assertEquals(3, index.getElementsByTagName("img").size());
+                assertEquals(3, index.getElementsByTagName("IMG").size());
+                assertEquals(0, index.getElementsByTagName("notexisting").size());
+                assertEquals(page.getElementsByTagName("*").size(), index.getElementsByTagName("*").size());
+
+                assertEquals(1, index.getElementsById("testid").size());
+                assertEquals(1, index.getElementsByName("testname").size());
+                assertEquals(2, index.getElementsByAttribute("img", "src", "blabla").size());
+                assertEquals(0, index.getElementsByAttribute("form", "src", "blabla").size());
+                assertEquals(3, index.getElementsByAttribute("input", "name", "").size());
+
+                // same results as without index
+                assertNotNull(HtmlUnitUtils.getElementById(index, "testid", HtmlImage.class));
+                assertNotNull(HtmlUnitUtils.getElementByName(index, "testname", HtmlImage.class));
+                assertEquals(
+                        HtmlUnitUtils.getElementsByAttribute(page, "img", "src", "blabla", HtmlImage.class),
+                        HtmlUnitUtils.getElementsByAttribute(index, "img", "src", "blabla", HtmlImage.class));
+                assertEquals(
+                        HtmlUnitUtils.getElementsByAttributeContains(page, "img", "class", "testclass", HtmlImage.class),
+                        HtmlUnitUtils.getElementsByAttributeContains(index, "img", "class", "testclass", HtmlImage.class));
+                assertEquals(
+                        HtmlUnitUtils.getElementsByTextContents(page, "form", "bla text1 bla", HtmlForm.class),
+                        HtmlUnitUtils.getElementsByTextContents(index, "form", "bla text1 bla", HtmlForm.class));
+
+                TestHelpers.assertContains(
+                        assertThrows(NoElementFoundException.class,
+                                () -> HtmlUnitUtils.getElementById(index, "nonexistingid", HtmlElement.class)),
+                        "Could not find element", "nonexistingid");
+                TestHelpers.assertContains(
+                        assertThrows(WrongElementException.class,
+                                () -> HtmlUnitUtils.getElementById(index, "testid", HtmlTextInput.class)),
+                        "Expected a field with id", "testid", "HtmlImage");
+                TestHelpers.assertContains(
+                        assertThrows(NoElementFoundException.class,
+                                () -> HtmlUnitUtils.getElementByName(index, "nonexistingname", HtmlElement.class)),
+                        "nonexistingname");
+                TestHelpers.assertContains(
+                        assertThrows(WrongElementException.class,
+                                () -> HtmlUnitUtils.getElementByName(index, "testname", HtmlTextInput.class)),
+                        "Expected a field with name", "testname", "HtmlImage");
+                TestHelpers.assertContains(
+                        assertThrows(WrongElementException.class,
+                                () -> HtmlUnitUtils.getElementsByAttribute(index, "img", "id", "testid", HtmlTextInput.class)),
+                        "Expected a field with tag", "testid", "HtmlImage");
+            }
+
+            verifier.addObject(page);
+        }
+    }
+
+    @Test
+    public void testInvalidatedOnChange() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML, HTML);
+             WebClient client = HtmlUnitUtils.createWebClient(false)) {
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + server.getPort());
+
+            try (PageIndex index = new PageIndex(page)) {
+                assertEquals(3, index.getElementsByTagName("img").size());
+                assertTrue(index.isValid());
+
+                // adding an element invalidates the index
+                DomElement img = page.createElement("img");
+                img.setAttribute("id", "newid");
+                page.getBody().appendChild(img);
+                assertFalse(index.isValid());
+
+                assertEquals(4, index.getElementsByTagName("img").size());
+                assertEquals(1, index.getElementsById("newid").size());
+                assertTrue(index.isValid());
+
+                // changing an attribute invalidates the index
+                img.setAttribute("id", "changedid");
+                assertFalse(index.isValid());
+                assertEquals(0, index.getElementsById("newid").size());
+                assertEquals(1, index.getElementsById("changedid").size());
+
+                // removing the element invalidates the index
+                img.remove();
+                assertFalse(index.isValid());
+                assertEquals(3, index.getElementsByTagName("img").size());
+            }
+
+            verifier.addObject(page);
+        }
+    }
+
+    @Test
+    public void testEmptyIndex() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML, HTML);
+             WebClient client = HtmlUnitUtils.createWebClient(false)) {
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + server.getPort());
+
+            try (PageIndex index = new PageIndex(page)) {
+                List<DomElement> elements = index.getElementsByAttribute("notexisting", "value");
+                assertTrue(elements.isEmpty());
+
+                // the lists of the index cannot be changed by callers
+                assertThrows(UnsupportedOperationException.class, () -> index.getElementsByTagName("img").clear());
+                assertThrows(UnsupportedOperationException.class, () -> index.getElementsByTagName("*").clear());
+                assertThrows(UnsupportedOperationException.class, () -> index.getElementsById("testid").clear());
+                assertEquals(3, index.getElementsByTagName("img").size());
+            }
+        }
+    }
+}
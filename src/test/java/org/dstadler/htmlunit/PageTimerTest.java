@@ -0,0 +1,90 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.SocketUtils;
+import org.htmlunit.ProxyConfig;
+import org.htmlunit.WebClient;
+import org.htmlunit.WebConnection;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PageTimerTest {
+    @Test
+    public void testLoad() throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                if (uri.endsWith(".js")) {
+                    return new Response(HTTP_OK, "text/javascript",
+                            "setTimeout(function() { document.title = 'Done'; }, 10);");
+                }
+                return new Response(HTTP_OK, MIME_HTML, "<html><head><title>Page</title>" +
+                        "<script src=\"/script.js\"></script></head><body>Ok</body></html>");
+            }
+        };
+        try (WebClient client = HtmlUnitUtils.createWebClient(true)) {
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+            WebConnection original = client.getWebConnection();
+
+            List<PageTimer.Timings> published = new ArrayList<>();
+            PageTimer timer = new PageTimer(Duration.ofSeconds(5));
+            timer.addListener((url, timings) -> published.add(timings));
+
+            PageTimer.TimedPage timed = timer.load(client, "http://localhost:" + port + "/page");
+            assertEquals("Done", timed.page().getTitleText());
+
+            PageTimer.Timings timings = timed.timings();
+            assertEquals(1, timings.subResourceCount());
+            assertEquals(0, timings.backgroundRequestCount());
+            assertEquals(0, timings.pendingJobs());
+            assertTrue(timings.documentNanos() > 0);
+            assertTrue(timings.subResourceNanos() > 0);
+            assertTrue(timings.totalNanos() >= timings.documentNanos() + timings.backgroundJavaScriptNanos(),
+                    "Had: " + timings);
+
+            assertEquals(List.of(timings), published);
+            assertSame(original, client.getWebConnection(), "The timing connection should be removed again");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_INTERNALERROR, MIME_HTML, "<html><body>Error</body></html>");
+            }
+        };
+        try (WebClient client = HtmlUnitUtils.createWebClient(false)) {
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+            WebConnection original = client.getWebConnection();
+
+            PageTimer timer = new PageTimer(Duration.ZERO);
+            assertThrows(IOException.class, () -> timer.load(client, "http://localhost:" + port));
+            assertSame(original, client.getWebConnection());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new PageTimer(Duration.ofSeconds(-1)));
+    }
+}
@@ -0,0 +1,209 @@
+package org.dstadler.htmlunit;
+
+import org.htmlunit.util.NameValuePair;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentStoreTest {
+    @Test
+    public void testPutAndGet(@TempDir File tempDir) throws Exception {
+        try (SegmentStore store = new SegmentStore(tempDir, 1024*1024, storedAt -> false, key -> {})) {
+            assertNull(store.get("key1"));
+
+            store.put("key1", response("body1", 1000));
+            store.put("key2", response("body2", 2000));
+            store.put("key1", response("body3", 3000));
+
+            CachedResponse response = store.get("key1");
+            assertNotNull(response);
+            assertEquals("body3", new String(response.getBody(), StandardCharsets.UTF_8));
+            assertEquals(3000, response.getStoredAt());
+            assertEquals("text/html", response.getHeader("content-type"));
+
+            store.remove("key2");
+            assertNull(store.get("key2"));
+        }
+
+        // the latest records are read again, removed ones are not
+        try (SegmentStore store = new SegmentStore(tempDir, 1024*1024, storedAt -> false, key -> {})) {
+            assertEquals("body3", new String(store.get("key1").getBody(), StandardCharsets.UTF_8));
+            assertEquals(3000, store.get("key1").getStoredAt());
+            assertNull(store.get("key2"));
+
+            // stored again after removing
+            store.put("key2", response("body4", 4000));
+        }
+
+        try (SegmentStore store = new SegmentStore(tempDir, 1024*1024, storedAt -> false, key -> {})) {
+            assertEquals("body4", new String(store.get("key2").getBody(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testIncompleteRecord(@TempDir File tempDir) throws Exception {
+        try (SegmentStore store = new SegmentStore(tempDir, 1024*1024, storedAt -> false, key -> {})) {
+            store.put("key1", response("body1", 1000));
+            store.put("key2", response("body2", 2000));
+        }
+
+        // cut off the last record as if writing it was interrupted
+        File segment = new File(tempDir, "segment-00000001.seg");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        try (SegmentStore store = new SegmentStore(tempDir, 1024*1024, storedAt -> false, key -> {})) {
+            assertEquals("body1", new String(store.get("key1").getBody(), StandardCharsets.UTF_8));
+            assertNull(store.get("key2"));
+
+            // new records are appended after the truncated part
+            store.put("key3", response("body3", 3000));
+        }
+
+        try (SegmentStore store = new SegmentStore(tempDir, 1024*1024, storedAt -> false, key -> {})) {
+            assertEquals("body3", new String(store.get("key3").getBody(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testCompact(@TempDir File tempDir) throws Exception {
+        // compaction may also run in the background
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        try (SegmentStore store = new SegmentStore(tempDir, 200, storedAt -> storedAt < 1000, expired::add)) {
+            store.put("old", response("old", 500));
+            for (int i = 0; i < 5; i++) {
+                // overwrite to produce unused records
+                store.put("key2", response("body" + i, 2000 + i));
+            }
+            store.put("key1", response("body1", 1000));
+
+            store.compact();
+
+            assertEquals(List.of("old"), expired);
+            assertNull(store.get("old"));
+            assertEquals("body1", new String(store.get("key1").getBody(), StandardCharsets.UTF_8));
+            assertEquals("body4", new String(store.get("key2").getBody(), StandardCharsets.UTF_8));
+
+            File[] files = tempDir.listFiles();
+            assertNotNull(files);
+            assertTrue(files.length < 7, "Had " + files.length + " segments");
+        }
+
+        try (SegmentStore store = new SegmentStore(tempDir, 200, storedAt -> storedAt < 1000, expired::add)) {
+            assertNull(store.get("old"));
+            assertEquals("body1", new String(store.get("key1").getBody(), StandardCharsets.UTF_8));
+            assertEquals("body4", new String(store.get("key2").getBody(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testRemoveAndCompact(@TempDir File tempDir) throws Exception {
+        try (SegmentStore store = new SegmentStore(tempDir, 200, storedAt -> false, key -> {})) {
+            for (int i = 0; i < 5; i++) {
+                store.put("key" + i, response("body" + i, 1000 + i));
+            }
+            store.remove("key0");
+            store.remove("key3");
+            store.put("key5", response("body5", 2000));
+
+            store.compact();
+
+            assertNull(store.get("key0"));
+            assertNull(store.get("key3"));
+        }
+
+        // removed records do not show up again, regardless of which segments were compacted
+        try (SegmentStore store = new SegmentStore(tempDir, 200, storedAt -> false, key -> {})) {
+            assertNull(store.get("key0"));
+            assertNull(store.get("key3"));
+            assertEquals("body4", new String(store.get("key4").getBody(), StandardCharsets.UTF_8));
+            assertEquals("body5", new String(store.get("key5").getBody(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testCompactKeepsValidators(@TempDir File tempDir) throws Exception {
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        try (SegmentStore store = new SegmentStore(tempDir, 200, storedAt -> storedAt < 1000, expired::add)) {
+            store.put("old", new CachedResponse("http://localhost/old", 200, "OK",
+                    List.of(new NameValuePair("Content-Type", "text/html"), new NameValuePair("ETag", "\"1\"")),
+                    "old".getBytes(StandardCharsets.UTF_8), 500));
+            for (int i = 0; i < 5; i++) {
+                store.put("key2", response("body" + i, 2000 + i));
+            }
+
+            store.compact();
+
+            // an expired record with an ETag can still be revalidated
+            assertEquals(List.of(), expired);
+            assertEquals("old", new String(store.get("old").getBody(), StandardCharsets.UTF_8));
+        }
+
+        // also when the index is read from the segments again
+        try (SegmentStore store = new SegmentStore(tempDir, 200, storedAt -> storedAt < 1000, expired::add)) {
+            store.put("key3", response("body3", 3000));
+            store.compact();
+
+            assertEquals(List.of(), expired);
+            assertEquals("old", new String(store.get("old").getBody(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testReadWhileCompacting(@TempDir File tempDir) throws Exception {
+        try (SegmentStore store = new SegmentStore(tempDir, 200, storedAt -> false, key -> {})) {
+            store.put("key", response("body", 1000));
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                AtomicBoolean done = new AtomicBoolean();
+                List<Future<?>> readers = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    readers.add(executor.submit(() -> {
+                        while (!done.get()) {
+                            // the record is moved to a new segment by each compaction
+                            CachedResponse response = store.get("key");
+                            assertNotNull(response);
+                            assertEquals("body", new String(response.getBody(), StandardCharsets.UTF_8));
+                        }
+                        return null;
+                    }));
+                }
+
+                for (int i = 0; i < 200; i++) {
+                    store.put("other", response("other" + i, 1000));
+                    store.compact();
+                }
+                done.set(true);
+
+                for (Future<?> reader : readers) {
+                    reader.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static CachedResponse response(String body, long storedAt) {
+        return new CachedResponse("http://localhost/" + body, 200, "OK",
+                List.of(new NameValuePair("Content-Type", "text/html")),
+                body.getBytes(StandardCharsets.UTF_8), storedAt);
+    }
+}
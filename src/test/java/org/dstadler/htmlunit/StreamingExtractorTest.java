@@ -0,0 +1,154 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.SocketUtils;
+import org.htmlunit.ProxyConfig;
+import org.htmlunit.WebClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StreamingExtractorTest {
+    private static final String HTML = "<html><body>" +
+            "<a href=\"/one\" class=\"item\">One</a>" +
+            "<div class=\"box other\"><span>Price</span><A HREF=\"/two\">Two</A></div>" +
+            "<span>Other <b>text</b></span>" +
+            "<input name=\"q\">" +
+            "</body></html>";
+
+    @Test
+    public void testTag() throws Exception {
+        List<StreamingExtractor.Match> matches = new ArrayList<>();
+        int count = StreamingExtractor.builder().tag("a").build()
+                .extract(new StringReader(HTML), matches::add);
+
+        assertEquals(2, count);
+        assertEquals("a", matches.get(0).tagName());
+        assertEquals("/one", matches.get(0).getAttribute("href"));
+        assertEquals("One", matches.get(0).text());
+        assertEquals("/two", matches.get(1).getAttribute("HREF"));
+        assertEquals("", matches.get(1).getAttribute("class"));
+    }
+
+    @Test
+    public void testAttribute() throws Exception {
+        List<String> texts = new ArrayList<>();
+        StreamingExtractor extractor = StreamingExtractor.builder()
+                .attribute("a", "class", "item")
+                .attributeContains("div", "class", "box")
+                .attribute("input", "value", "")
+                .build();
+        assertEquals(3, extractor.extract(new StringReader(HTML), match -> texts.add(match.tagName() + ":" + match.text())));
+
+        assertEquals(List.of("a:One", "div:PriceTwo", "input:"), texts);
+    }
+
+    @Test
+    public void testTextContents() throws Exception {
+        List<String> texts = new ArrayList<>();
+        StreamingExtractor extractor = StreamingExtractor.builder()
+                .textContents("span", "Price")
+                .textContents("span", "Other text")
+                .textContents("b", "missing")
+                .build();
+        assertEquals(2, extractor.extract(new ByteArrayInputStream(HTML.getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8, match -> texts.add(match.text())));
+
+        assertEquals(List.of("Price", "Other text"), texts);
+    }
+
+    @Test
+    public void testAnyTag() throws Exception {
+        List<String> tags = new ArrayList<>();
+        StreamingExtractor extractor = StreamingExtractor.builder()
+                .attribute("*", "id", "2")
+                .textContents("*", "y")
+                .build();
+        assertEquals(2, extractor.extract(new StringReader("<div id=\"1\"><span id=\"2\">x</span><b>y</b></div>"),
+                match -> tags.add(match.tagName())));
+        assertEquals(List.of("span", "b"), tags);
+
+        // all elements including the ones added by the parser
+        assertTrue(StreamingExtractor.builder().tag("*").build()
+                .extract(new StringReader("<div><span>x</span></div>"), match -> {}) >= 2);
+    }
+
+    @Test
+    public void testNested() throws Exception {
+        List<String> tags = new ArrayList<>();
+        assertEquals(3, StreamingExtractor.builder().tag("div").build()
+                .extract(new StringReader("<div id=\"1\"><div id=\"2\"><div id=\"3\">x</div></div></div>"),
+                        match -> tags.add(match.getAttribute("id") + ":" + match.text())));
+
+        // nested elements are reported first
+        assertEquals(List.of("3:x", "2:x", "1:x"), tags);
+    }
+
+    @Test
+    public void testExtractUrl() throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_OK, MIME_HTML, HTML);
+            }
+        };
+        try (WebClient client = HtmlUnitUtils.createWebClient(false)) {
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+
+            List<String> links = new ArrayList<>();
+            assertEquals(2, StreamingExtractor.builder().tag("a").build()
+                    .extract(client, "http://localhost:" + port, match -> links.add(match.getAttribute("href"))));
+            assertEquals(List.of("/one", "/two"), links);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testExtractUrlFailingStatus() throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_NOTFOUND, MIME_HTML, HTML);
+            }
+        };
+        try (WebClient client = HtmlUnitUtils.createWebClient(false)) {
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+
+            StreamingExtractor extractor = StreamingExtractor.builder().tag("a").build();
+            String url = "http://localhost:" + port;
+
+            client.getOptions().setThrowExceptionOnFailingStatusCode(true);
+            assertThrows(IOException.class, () -> extractor.extract(client, url, match -> {}));
+
+            // the error-page is used if the client does not throw on failing status codes
+            client.getOptions().setThrowExceptionOnFailingStatusCode(false);
+            assertEquals(2, extractor.extract(client, url, match -> {}));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBuilderInvalid() {
+        StreamingExtractor.Builder builder = StreamingExtractor.builder();
+        assertThrows(IllegalStateException.class, builder::build);
+        assertThrows(IllegalArgumentException.class, () -> builder.tag(""));
+        assertThrows(NullPointerException.class, () -> builder.attribute("a", null, "x"));
+        assertThrows(NullPointerException.class, () -> builder.textContents("a", null));
+    }
+}
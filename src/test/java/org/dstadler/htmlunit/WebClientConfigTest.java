@@ -0,0 +1,94 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.SocketUtils;
+import org.htmlunit.BrowserVersion;
+import org.htmlunit.ProxyConfig;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlPage;
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WebClientConfigTest {
+    @Test
+    public void testDefaults() {
+        try (WebClient client = HtmlUnitUtils.createWebClient(WebClientConfig.builder().build())) {
+            assertSame(BrowserVersion.FIREFOX_ESR, client.getBrowserVersion());
+            assertTrue(client.getOptions().isJavaScriptEnabled());
+            assertFalse(client.getOptions().isCssEnabled());
+            assertTrue(client.getOptions().isRedirectEnabled());
+            assertFalse(client.getOptions().isDownloadImages());
+            assertEquals(60000, client.getOptions().getTimeout());
+        }
+    }
+
+    @Test
+    public void testSettings() {
+        WebClientConfig config = WebClientConfig.builder()
+                .browserVersion(BrowserVersion.CHROME)
+                .javaScript(false)
+                .css(true)
+                .redirects(false)
+                .downloadImages(true)
+                .timeout(5, TimeUnit.SECONDS)
+                .waitForBackgroundJavaScript(0, TimeUnit.MILLISECONDS)
+                .build();
+        try (WebClient client = HtmlUnitUtils.createWebClient(config)) {
+            assertSame(BrowserVersion.CHROME, client.getBrowserVersion());
+            assertFalse(client.getOptions().isJavaScriptEnabled());
+            assertTrue(client.getOptions().isCssEnabled());
+            assertFalse(client.getOptions().isRedirectEnabled());
+            assertTrue(client.getOptions().isDownloadImages());
+            assertEquals(5000, client.getOptions().getTimeout());
+        }
+    }
+
+    @Test
+    public void testConnectionPoolAndFilter() throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_OK, MIME_HTML, "<html><head><title>Page</title>" +
+                        "<script src=\"/script.js\"></script></head><body>Ok</body></html>");
+            }
+        };
+        WebClientConfig config = WebClientConfig.builder()
+                .connectionPool(2, 4)
+                .resourceFilter(BlockingWebConnection.builder().denyPath(Pattern.compile("\\.js$")))
+                .build();
+        try (WebClient client = HtmlUnitUtils.createWebClient(config)) {
+            // set empty proxy for localhost
+            client.getOptions().setProxyConfig(new ProxyConfig());
+
+            HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + port);
+            assertEquals("Page", page.getTitleText());
+
+            BlockingWebConnection connection = assertInstanceOf(BlockingWebConnection.class, client.getWebConnection());
+            assertEquals(1, connection.getBlockedCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBuilderInvalid() {
+        WebClientConfig.Builder builder = WebClientConfig.builder();
+        assertThrows(NullPointerException.class, () -> builder.browserVersion(null));
+        assertThrows(IllegalArgumentException.class, () -> builder.timeout(-1, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> builder.timeout(Long.MAX_VALUE, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> builder.waitForBackgroundJavaScript(-1, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> builder.connectionPool(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> builder.connectionPool(4, 2));
+    }
+}
@@ -0,0 +1,127 @@
+package org.dstadler.htmlunit;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.testing.MemoryLeakVerifier;
+import org.dstadler.commons.testing.MockRESTServer;
+import org.htmlunit.BrowserVersion;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlPage;
+import org.htmlunit.util.Cookie;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WebClientPoolTest {
+    private final MemoryLeakVerifier verifier = new MemoryLeakVerifier();
+
+    @AfterEach
+    public void tearDown() {
+        verifier.assertGarbageCollected();
+    }
+
+    @Test
+    public void testBorrowAndReuse() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_HTML, "<html><body>Ok</body></html>")) {
+            try (WebClientPool pool = new WebClientPool()) {
+                final WebClient client;
+                try (WebClientPool.Lease lease = pool.borrow(false)) {
+                    client = lease.getClient();
+                    assertNotNull(client);
+
+                    client.getCookieManager().addCookie(new Cookie("localhost", "name", "value"));
+
+                    HtmlPage page = HtmlUnitUtils.getInitialPage(client, "http://localhost:" + server.getPort());
+                    assertNotNull(page);
+                }
+
+                assertEquals(1, pool.getIdleCount());
+
+                try (WebClientPool.Lease lease = pool.borrow(false)) {
+                    assertSame(client, lease.getClient(), "Should re-use the returned client");
+                    assertTrue(lease.getClient().getCookieManager().getCookies().isEmpty(),
+                            "Cookies should be cleared when the client is returned");
+                    assertEquals(1, lease.getClient().getTopLevelWindows().size());
+                }
+
+                // a different key uses a different client
+                try (WebClientPool.Lease lease = pool.borrow(false, BrowserVersion.CHROME)) {
+                    assertNotSame(client, lease.getClient());
+                }
+
+                assertEquals(2, pool.getIdleCount());
+
+                verifier.addObject(client);
+            }
+        }
+    }
+
+    @Test
+    public void testMaxUses() throws Exception {
+        try (WebClientPool pool = new WebClientPool(1, 1, TimeUnit.MINUTES, 1)) {
+            final WebClient client;
+            try (WebClientPool.Lease lease = pool.borrow(false)) {
+                client = lease.getClient();
+            }
+
+            assertEquals(0, pool.getIdleCount(), "Client should be closed after the maximum number of uses");
+
+            try (WebClientPool.Lease lease = pool.borrow(false)) {
+                assertNotSame(client, lease.getClient());
+            }
+        }
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        try (WebClientPool pool = new WebClientPool(1, 1, TimeUnit.MILLISECONDS, 100)) {
+            final WebClient client;
+            try (WebClientPool.Lease lease = pool.borrow(false)) {
+                client = lease.getClient();
+            }
+            assertEquals(1, pool.getIdleCount());
+
+            Thread.sleep(50);
+
+            try (WebClientPool.Lease lease = pool.borrow(false)) {
+                assertNotSame(client, lease.getClient(), "Idle client should have been evicted");
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidateAndClose() throws Exception {
+        WebClientPool pool = new WebClientPool();
+        try (WebClientPool.Lease lease = pool.borrow()) {
+            lease.invalidate();
+        }
+        assertEquals(0, pool.getIdleCount());
+
+        WebClientPool.Lease lease = pool.borrow(true);
+        pool.close();
+
+        // returning a client to a closed pool closes it
+        lease.close();
+        assertEquals(0, pool.getIdleCount());
+
+        // closing twice is fine
+        lease.close();
+
+        assertThrows(IllegalStateException.class, lease::getClient);
+        assertThrows(IllegalStateException.class, pool::borrow);
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new WebClientPool(0, 1, TimeUnit.MINUTES, 1));
+        assertThrows(IllegalArgumentException.class, () -> new WebClientPool(1, -1, TimeUnit.MINUTES, 1));
+        assertThrows(IllegalArgumentException.class, () -> new WebClientPool(1, 1, TimeUnit.MINUTES, 0));
+    }
+}
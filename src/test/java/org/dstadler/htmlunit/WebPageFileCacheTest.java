@@ -1,21 +1,42 @@
 package org.dstadler.htmlunit;
 
+import org.htmlunit.BrowserVersion;
 import org.htmlunit.WebClient;
 import org.htmlunit.html.DomElement;
 import org.htmlunit.html.DomNodeList;
 import org.htmlunit.html.HtmlAnchor;
 import org.htmlunit.html.HtmlPage;
+import org.apache.commons.io.FileUtils;
 import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.SocketUtils;
 import org.dstadler.commons.testing.MemoryLeakVerifier;
 import org.dstadler.commons.testing.MockRESTServer;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class WebPageFileCacheTest {
@@ -52,6 +73,614 @@ public class WebPageFileCacheTest {
         }
     }
 
+    @Test
+    public void testHandleMemoryTier() throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", "<html><body><a href=\"https://www.google.at/\">link</a></body></html")) {
+            try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                verifier.addObject(webClient);
+
+                WebPageFileCache cache = new WebPageFileCache(1024*1024);
+
+                // make sure the cache is empty initially
+                cache.clear();
+
+                // load the file the first time
+                String url = "http://localhost:" + server.getPort() + "/memory";
+                HtmlPage page = cache.handle(webClient, url);
+                checkLink(page);
+
+                assertEquals(0, cache.getMemoryStats().hitCount());
+                assertEquals(1, cache.getMemoryStats().missCount());
+                assertEquals(0, cache.getFileStats().hitCount());
+                assertEquals(1, cache.getFileStats().missCount());
+
+                // load a second time, now from memory with the original URL
+                page = cache.handle(webClient, url);
+                checkLink(page);
+                assertEquals(url, page.getUrl().toString());
+
+                assertEquals(1, cache.getMemoryStats().hitCount());
+                assertEquals(0, cache.getFileStats().hitCount());
+
+                // a new cache reads from the file and then keeps it in memory
+                WebPageFileCache cache2 = new WebPageFileCache(1024*1024);
+                checkLink(cache2.handle(webClient, url));
+                page = cache2.handle(webClient, url);
+                checkLink(page);
+                assertEquals(url, page.getUrl().toString(), "Should keep the original URL, not the one of the saved file");
+                assertEquals(1, cache2.getFileStats().hitCount());
+                assertEquals(1, cache2.getMemoryStats().hitCount());
+
+                verifier.addObject(page);
+            }
+        }
+    }
+
+    @Test
+    public void testBuilder(@TempDir File tempDir) throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", "<html><body><a href=\"https://www.google.at/\">link</a></body></html")) {
+            try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                verifier.addObject(webClient);
+
+                WebPageFileCache cache = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .timeout(1, TimeUnit.HOURS)
+                        .maxTotalBytes(1)
+                        .build();
+                assertEquals(tempDir, cache.getDirectory());
+                assertEquals(0, cache.getTotalBytes());
+
+                checkLink(cache.handle(webClient, "http://localhost:" + server.getPort() + "/page1"));
+                assertTrue(cache.getTotalBytes() > 0);
+                assertEquals(0, cache.getFileStats().evictionCount());
+
+                // storing the second page evicts the first one as the size-limit is exceeded
+                checkLink(cache.handle(webClient, "http://localhost:" + server.getPort() + "/page2"));
+                assertEquals(1, cache.getFileStats().evictionCount());
+                assertEquals(1, countCachedFiles(tempDir));
+
+                checkLink(cache.handle(webClient, "http://localhost:" + server.getPort() + "/page2"));
+                assertEquals(1, cache.getFileStats().hitCount());
+
+                // a new cache picks up the existing file
+                WebPageFileCache cache2 = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .build();
+                assertEquals(cache.getTotalBytes(), cache2.getTotalBytes());
+                checkLink(cache2.handle(webClient, "http://localhost:" + server.getPort() + "/page2"));
+                assertEquals(1, cache2.getFileStats().hitCount());
+
+                cache2.clear();
+                assertEquals(0, cache2.getTotalBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testTemporaryFiles(@TempDir File tempDir) throws Exception {
+        File abandoned = new File(tempDir, ".tmp-abandoned.tmp");
+        FileUtils.writeStringToFile(abandoned, "partial", StandardCharsets.UTF_8);
+        assertTrue(abandoned.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+
+        // may still be written by another instance which uses the same directory
+        File inProgress = new File(tempDir, ".tmp-inprogress.tmp");
+        FileUtils.writeStringToFile(inProgress, "partial", StandardCharsets.UTF_8);
+
+        WebPageFileCache cache = WebPageFileCache.builder()
+                .directory(tempDir)
+                .build();
+        assertEquals(0, cache.getTotalBytes());
+
+        assertFalse(abandoned.exists());
+        assertTrue(inProgress.exists());
+    }
+
+    @Test
+    public void testTimeout(@TempDir File tempDir) throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", "<html><body><a href=\"https://www.google.at/\">link</a></body></html")) {
+            try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                verifier.addObject(webClient);
+
+                WebPageFileCache cache = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .timeout(0, TimeUnit.MILLISECONDS)
+                        .build();
+
+                checkLink(cache.handle(webClient, "http://localhost:" + server.getPort()));
+                Thread.sleep(10);
+                checkLink(cache.handle(webClient, "http://localhost:" + server.getPort()));
+
+                assertEquals(0, cache.getFileStats().hitCount());
+                assertEquals(2, cache.getFileStats().missCount());
+            }
+        }
+    }
+
+    @Test
+    public void testRawResponses(@TempDir File tempDir) throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", "<html><body><a href=\"/relative\">link</a></body></html")) {
+            try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                verifier.addObject(webClient);
+
+                String url = "http://localhost:" + server.getPort() + "/raw";
+                WebPageFileCache cache = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .rawResponses(true)
+                        .build();
+
+                HtmlPage page = cache.handle(webClient, url);
+                assertEquals(url, page.getUrl().toString());
+                assertEquals(1, cache.getFileStats().missCount());
+
+                // read the stored response in a new cache
+                WebPageFileCache cache2 = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .rawResponses(true)
+                        .build();
+                page = cache2.handle(webClient, url);
+                assertEquals(1, cache2.getFileStats().hitCount());
+
+                // the page keeps the original URL, so relative links resolve correctly
+                assertEquals(url, page.getUrl().toString());
+                assertEquals("text/html", page.getWebResponse().getContentType());
+                assertEquals(200, page.getWebResponse().getStatusCode());
+
+                HtmlAnchor anchor = (HtmlAnchor) page.getElementsByTagName("a").getFirst();
+                assertEquals("http://localhost:" + server.getPort() + "/relative",
+                        page.getFullyQualifiedUrl(anchor.getHrefAttribute()).toString());
+
+                // the response does not depend on the cached file
+                cache2.clear();
+                assertTrue(page.getWebResponse().getContentAsString().contains("/relative"));
+
+                verifier.addObject(page);
+            }
+        }
+    }
+
+    @Test
+    public void testGzipResponse(@TempDir File tempDir) throws Exception {
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                try {
+                    Response response = new Response(HTTP_OK, MIME_HTML, new ByteArrayInputStream(
+                            CachingWebConnectionTest.gzip("<html><body><a href=\"https://www.google.at/\">link</a></body></html>")));
+                    response.addHeader("Content-Encoding", "gzip");
+                    return response;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+            verifier.addObject(webClient);
+
+            String url = "http://localhost:" + port + "/gzip";
+            WebPageFileCache cache = WebPageFileCache.builder()
+                    .directory(tempDir)
+                    .rawResponses(true)
+                    .maxMemoryBytes(1024*1024)
+                    .build();
+
+            checkLink(cache.handle(webClient, url));
+
+            // from memory
+            checkLink(cache.handle(webClient, url));
+            assertEquals(1, cache.getMemoryStats().hitCount());
+
+            // from the raw response on disk
+            WebPageFileCache cache2 = WebPageFileCache.builder()
+                    .directory(tempDir)
+                    .rawResponses(true)
+                    .build();
+            HtmlPage page = cache2.handle(webClient, url);
+            checkLink(page);
+            assertEquals(1, cache2.getFileStats().hitCount());
+
+            verifier.addObject(page);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCompressed(@TempDir File tempDir) throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", "<html><body><a href=\"https://www.google.at/\">link</a></body></html")) {
+            try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                verifier.addObject(webClient);
+
+                String url = "http://localhost:" + server.getPort() + "/compressed";
+                WebPageFileCache cache = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .compressed(true)
+                        .build();
+
+                HtmlPage page = cache.handle(webClient, url);
+                checkLink(page);
+
+                // the file is stored in a sub-directory
+                File file = new File(new File(tempDir, WebPageFileCache.stripUrl(url).substring(0, 2)),
+                        WebPageFileCache.stripUrl(url) + ".response.gz");
+                assertTrue(file.exists(), "Expected file at " + file);
+                assertEquals(0, countCachedFiles(tempDir));
+
+                // a new cache finds the file in the sub-directory and streams it into the parser
+                WebPageFileCache cache2 = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .compressed(true)
+                        .build();
+                assertEquals(file.length(), cache2.getTotalBytes());
+
+                page = cache2.handle(webClient, url);
+                checkLink(page);
+                assertEquals(url, page.getUrl().toString());
+                assertEquals(1, cache2.getFileStats().hitCount());
+
+                verifier.addObject(page);
+            }
+        }
+    }
+
+    @Test
+    public void testSegments(@TempDir File tempDir) throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", "<html><body><a href=\"https://www.google.at/\">link</a></body></html")) {
+            try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                verifier.addObject(webClient);
+
+                String url = "http://localhost:" + server.getPort() + "/segments";
+                try (WebPageFileCache cache = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .segmentSize(1024*1024)
+                        .build()) {
+                    checkLink(cache.handle(webClient, url));
+                    checkLink(cache.handle(webClient, url + "2"));
+                    assertEquals(2, cache.getFileStats().missCount());
+                }
+
+                // both pages are stored in one segment
+                File[] files = tempDir.listFiles();
+                assertNotNull(files);
+                assertEquals(1, files.length);
+
+                try (WebPageFileCache cache = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .segmentSize(1024*1024)
+                        .build()) {
+                    HtmlPage page = cache.handle(webClient, url);
+                    checkLink(page);
+                    assertEquals(url, page.getUrl().toString());
+                    assertEquals(1, cache.getFileStats().hitCount());
+                    assertTrue(cache.getTotalBytes() > 0);
+
+                    verifier.addObject(page);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStaleWhileRevalidate(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_OK, MIME_HTML, "<html><body>v" + requests.incrementAndGet() + "</body></html>");
+            }
+        };
+        try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+            verifier.addObject(webClient);
+
+            try (WebPageFileCache cache = WebPageFileCache.builder()
+                    .directory(tempDir)
+                    .timeout(0, TimeUnit.MILLISECONDS)
+                    .staleWhileRevalidate(1, TimeUnit.HOURS, () -> HtmlUnitUtils.createWebClient(false))
+                    .refreshThreads(1)
+                    .build()) {
+                String url = "http://localhost:" + port + "/stale";
+                assertEquals("v1", cache.handle(webClient, url).getBody().asNormalizedText());
+
+                // the expired page is returned right away
+                Thread.sleep(10);
+                assertEquals("v1", cache.handle(webClient, url).getBody().asNormalizedText());
+                assertEquals(1, cache.getStaleHitCount());
+
+                // the refreshed page is returned as soon as the refresh in the background is done
+                String text = null;
+                for (int i = 0; i < 100 && !"v2".equals(text); i++) {
+                    Thread.sleep(100);
+                    text = cache.handle(webClient, url).getBody().asNormalizedText();
+                }
+                assertEquals("v2", text);
+                assertTrue(cache.getFileStats().missCount() >= 2);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPrefetchStale(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                return new Response(HTTP_OK, MIME_HTML, "<html><body>v" + requests.incrementAndGet() + "</body></html>");
+            }
+        };
+        try {
+            try (WebPageFileCache cache = WebPageFileCache.builder()
+                    .directory(tempDir)
+                    .timeout(0, TimeUnit.MILLISECONDS)
+                    .staleWhileRevalidate(1, TimeUnit.HOURS, () -> HtmlUnitUtils.createWebClient(false))
+                    .build()) {
+                List<String> urls = List.of("http://localhost:" + port + "/stale");
+                assertTrue(cache.prefetch(urls, 1, true, BrowserVersion.CHROME, result -> {}).getFirst().getOrThrow());
+                assertEquals(1, requests.get());
+
+                // the expired page is loaded again before prefetching reports it, not only served stale
+                Thread.sleep(10);
+                assertTrue(cache.prefetch(urls, 1).getFirst().getOrThrow());
+                assertEquals(2, requests.get());
+                assertEquals(0, cache.getStaleHitCount());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPrefetch(@TempDir File tempDir) throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", "<html><body><a href=\"https://www.google.at/\">link</a></body></html")) {
+            WebPageFileCache cache = WebPageFileCache.builder()
+                    .directory(tempDir)
+                    .build();
+
+            String url = "http://localhost:" + server.getPort();
+            List<String> urls = List.of(url + "/page1", url + "/page2", url + "/page3", "http://localhost:1/invalid");
+
+            List<PageFetcher.FetchResult<Boolean>> progress = new ArrayList<>();
+            List<PageFetcher.FetchResult<Boolean>> results = cache.prefetch(urls, 2, progress::add);
+            assertEquals(4, results.size());
+            assertEquals(results, progress);
+            assertEquals(3, results.stream().filter(PageFetcher.FetchResult::isSuccess).count());
+            for (PageFetcher.FetchResult<Boolean> result : results) {
+                if (result.isSuccess()) {
+                    assertTrue(result.value(), "Page should be loaded: " + result);
+                } else {
+                    assertEquals("http://localhost:1/invalid", result.url());
+                }
+            }
+            assertEquals(3, countCachedFiles(tempDir));
+
+            // all pages are cached now
+            results = cache.prefetch(urls.subList(0, 3), 2);
+            for (PageFetcher.FetchResult<Boolean> result : results) {
+                assertEquals(Boolean.FALSE, result.getOrThrow(), "Page should be cached already: " + result);
+            }
+
+            try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                checkLink(cache.handle(webClient, url + "/page1"));
+            }
+            assertEquals(1, cache.getFileStats().hitCount());
+        }
+    }
+
+    @Test
+    public void testMetrics(@TempDir File tempDir) throws Exception {
+        try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, "text/html", "<html><body><a href=\"https://www.google.at/\">link</a></body></html")) {
+            try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                verifier.addObject(webClient);
+
+                try (WebPageFileCache cache = WebPageFileCache.builder()
+                        .directory(tempDir)
+                        .build()) {
+                    List<String> events = new ArrayList<>();
+                    cache.addListener(new WebPageFileCache.Listener() {
+                        @Override
+                        public void hit(String url, boolean fromMemory) {
+                            events.add("hit");
+                        }
+
+                        @Override
+                        public void miss(String url) {
+                            events.add("miss");
+                        }
+
+                        @Override
+                        public void loaded(String url, long nanos) {
+                            events.add("loaded");
+                        }
+
+                        @Override
+                        public void stored(String url, long nanos) {
+                            events.add("stored");
+                        }
+                    });
+
+                    ObjectName name = cache.registerMBean("testMetrics");
+
+                    String url = "http://localhost:" + server.getPort() + "/metrics";
+                    checkLink(cache.handle(webClient, url));
+                    checkLink(cache.handle(webClient, url));
+                    assertEquals(List.of("miss", "loaded", "stored", "hit"), events);
+
+                    WebPageFileCache.Metrics metrics = cache.getMetrics();
+                    assertEquals(1, metrics.files().hitCount());
+                    assertEquals(1, metrics.files().missCount());
+                    assertEquals(1, metrics.loadTimes().count());
+                    assertEquals(1, metrics.restoreTimes().count());
+                    assertEquals(1, metrics.storeTimes().count());
+                    assertTrue(metrics.totalBytes() > 0);
+
+                    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                    assertEquals(1L, mbeanServer.getAttribute(name, "FileHitCount"));
+                    assertEquals(metrics.totalBytes(), mbeanServer.getAttribute(name, "TotalBytes"));
+
+                    cache.close();
+                    assertFalse(mbeanServer.isRegistered(name));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRevalidate(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger conditional = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                for (String key : header.stringPropertyNames()) {
+                    if (key.equalsIgnoreCase("If-None-Match") && "\"v1\"".equals(header.getProperty(key))) {
+                        conditional.incrementAndGet();
+                        return new Response("304 Not Modified", MIME_HTML, "");
+                    }
+                }
+
+                Response response = new Response(HTTP_OK, MIME_HTML, "<html><body><a href=\"https://www.google.at/\">link</a></body></html>");
+                response.addHeader("ETag", "\"v1\"");
+                return response;
+            }
+        };
+        try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+            verifier.addObject(webClient);
+
+            WebPageFileCache cache = WebPageFileCache.builder()
+                    .directory(tempDir)
+                    .timeout(0, TimeUnit.MILLISECONDS)
+                    .build();
+
+            String url = "http://localhost:" + port + "/revalidate";
+            checkLink(cache.handle(webClient, url));
+            assertEquals(1, requests.get());
+
+            // the file is expired now, but the server confirms that it did not change
+            Thread.sleep(10);
+            checkLink(cache.handle(webClient, url));
+            assertEquals(2, requests.get());
+            assertEquals(1, conditional.get());
+            assertEquals(1, cache.getRevalidationCount());
+            assertEquals(1, cache.getFileStats().missCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRevalidateFailing(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                switch (requests.incrementAndGet()) {
+                    case 1 -> {
+                        Response response = new Response(HTTP_OK, MIME_HTML, "<html><body><a href=\"https://www.google.at/\">link</a></body></html>");
+                        response.addHeader("ETag", "\"v1\"");
+                        return response;
+                    }
+                    case 2 -> {
+                        return new Response("304 Not Modified", MIME_HTML, "");
+                    }
+                    default -> {
+                        return new Response(HTTP_INTERNALERROR, MIME_HTML, "<html><body>Error</body></html>");
+                    }
+                }
+            }
+        };
+        try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+            verifier.addObject(webClient);
+
+            WebPageFileCache cache = WebPageFileCache.builder()
+                    .directory(tempDir)
+                    .timeout(0, TimeUnit.MILLISECONDS)
+                    .build();
+
+            String url = "http://localhost:" + port + "/revalidate";
+            checkLink(cache.handle(webClient, url));
+            File[] files = tempDir.listFiles((file, name) -> name.endsWith(".html"));
+            assertNotNull(files);
+            assertEquals(1, files.length);
+            String cached = FileUtils.readFileToString(files[0], StandardCharsets.UTF_8);
+
+            Thread.sleep(10);
+            checkLink(cache.handle(webClient, url));
+            assertEquals(1, cache.getRevalidationCount());
+
+            // the error of the server is reported and does not replace the cached page
+            Thread.sleep(10);
+            assertThrows(IOException.class, () -> cache.handle(webClient, url));
+            assertEquals(3, requests.get());
+            assertEquals(cached, FileUtils.readFileToString(files[0], StandardCharsets.UTF_8));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentMisses(@TempDir File tempDir) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        int port = SocketUtils.getNextFreePort(8000, 9000);
+        NanoHTTPD server = new NanoHTTPD(port) {
+            @Override
+            public Response serve(String uri, String method, Properties header, Properties parms) {
+                requests.incrementAndGet();
+                try {
+                    // slow response so that all threads request the page at the same time
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return new Response(HTTP_OK, MIME_HTML, "<html><body><a href=\"https://www.google.at/\">link</a></body></html>");
+            }
+        };
+        try {
+            WebPageFileCache cache = WebPageFileCache.builder()
+                    .directory(tempDir)
+                    .build();
+
+            String url = "http://localhost:" + port + "/concurrent";
+            int threads = 4;
+            try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    futures.add(executor.submit(() -> {
+                        try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
+                            checkLink(cache.handle(webClient, url));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+
+            assertEquals(1, requests.get(), "Only one thread should load the page");
+            assertEquals(1, cache.getFileStats().missCount());
+            assertEquals(threads - 1, cache.getFileStats().hitCount());
+            assertEquals(1, countCachedFiles(tempDir));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBuilderInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> WebPageFileCache.builder().timeout(-1, TimeUnit.HOURS));
+        assertThrows(IllegalArgumentException.class, () -> WebPageFileCache.builder().maxTotalBytes(0));
+        assertThrows(IllegalArgumentException.class, () -> WebPageFileCache.builder().maxMemoryBytes(-1));
+        assertThrows(IllegalArgumentException.class, () -> WebPageFileCache.builder().segmentSize(-1));
+        assertThrows(IllegalArgumentException.class, () -> WebPageFileCache.builder().refreshThreads(0));
+        assertThrows(IllegalStateException.class, () -> WebPageFileCache.builder().compressed(true).segmentSize(1024).build());
+    }
+
     @Test
     public void testHandleComplexPage() throws Exception {
         try (WebClient webClient = HtmlUnitUtils.createWebClient(false)) {
@@ -140,6 +769,11 @@ public class WebPageFileCacheTest {
         fail("Could not find link to shop baby-direkt at " + AMAZON_URL + ", had " + priceSpans.size() + " spans/divs");
     }*/
 
+    private static int countCachedFiles(File dir) {
+        File[] files = dir.listFiles((file, name) -> name.endsWith(".html"));
+        return files == null ? 0 : files.length;
+    }
+
     private static void checkLink(HtmlPage page) {
         assertNotNull(page);
         DomNodeList<DomElement> hrefs = page.getElementsByTagName("a");